@@ -0,0 +1,83 @@
+package fat32.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The image every benchmark runs against. It is generated once and kept in
+ * the temp directory, so forks after the first just reopen it.
+ *
+ * Layout (4 KB clusters):
+ *   /SMALL/           16 files of 1 KB
+ *   /HUGE/            65,536 files, every other one with a long name
+ *   /CONTIG.BIN       64 MB in one run of clusters
+ *   /FRAG.BIN         64 MB with a free cluster after every cluster
+ *   /DEEP/L00/.../L31 32 levels, 63 sibling files at each level, LEAF.TXT at the bottom
+ */
+public final class BenchmarkImage {
+
+    // Bump when the layout changes so stale images are not reused
+    private static final String VERSION = "1";
+
+    public static final int HUGE_ENTRIES = 65536;
+    public static final int DEPTH = 32;
+    public static final long BIG_FILE_SIZE = 64L << 20;
+
+    private BenchmarkImage() {
+    }
+
+    public static Path get() throws IOException {
+        Path path = Path.of(System.getProperty("java.io.tmpdir"), "fat32-bench-v" + VERSION + ".img");
+        if (Files.exists(path)) {
+            return path;
+        }
+        Path partial = Files.createTempFile(path.getParent(), "fat32-bench", ".tmp");
+        build().write(partial);
+        Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+        return path;
+    }
+
+    static ImageBuilder build() {
+        ImageBuilder image = new ImageBuilder(512, 8, 131072);
+        ImageBuilder.Dir root = image.root();
+
+        ImageBuilder.Dir small = root.mkdir("SMALL");
+        for (int i = 0; i < 16; i++) {
+            small.file(String.format("F%02d.TXT", i), 1024);
+        }
+
+        ImageBuilder.Dir huge = root.mkdir("HUGE");
+        for (int i = 0; i < HUGE_ENTRIES; i++) {
+            huge.file(hugeName(i), 16);
+        }
+
+        root.file("CONTIG.BIN", BIG_FILE_SIZE);
+        root.file("FRAG.BIN", BIG_FILE_SIZE, 1);
+
+        ImageBuilder.Dir level = root.mkdir("DEEP");
+        for (int depth = 0; depth < DEPTH; depth++) {
+            for (int i = 0; i < 63; i++) {
+                level.file(String.format("S%02d.DAT", i), 64);
+            }
+            level = level.mkdir(String.format("L%02d", depth));
+        }
+        level.file("LEAF.TXT", 128);
+        return image;
+    }
+
+    /** Name of the {@code i}-th file in /HUGE. */
+    public static String hugeName(int i) {
+        return i % 2 == 0 ? String.format("H%07d.DAT", i) : String.format("Huge file number %07d.data", i);
+    }
+
+    /** Absolute path of the deepest file. */
+    public static String deepPath() {
+        StringBuilder path = new StringBuilder("/DEEP");
+        for (int depth = 0; depth < DEPTH; depth++) {
+            path.append(String.format("/L%02d", depth));
+        }
+        return path.append("/LEAF.TXT").toString();
+    }
+}
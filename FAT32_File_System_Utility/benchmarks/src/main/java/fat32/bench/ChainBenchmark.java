@@ -0,0 +1,86 @@
+package fat32.bench;
+
+import fat32.ExtentList;
+import fat32.Fat32Volume;
+import fat32.FatTable;
+import fat32.VolumeGeometry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster chain work on the 64 MB files: walking the FAT, building an
+ * extent list, and mapping a file offset to a cluster.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChainBenchmark {
+
+    @Param({"CONTIG.BIN", "FRAG.BIN"})
+    public String file;
+
+    private Fat32Volume volume;
+    private int[] fatEntries;
+    private long firstCluster;
+    private ExtentList extents;
+    private long[] clusterIndexes;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        volume = Fat32Volume.open(BenchmarkImage.get().toString());
+        firstCluster = volume.getResolver().resolve("/", file).getCluster();
+        extents = volume.getFat().extents(firstCluster);
+
+        // A private copy of the FAT so each invocation can start with no cached extents
+        VolumeGeometry geometry = volume.getGeometry();
+        ByteBuffer raw = volume.getDevice().view(geometry.getFatOffset(), (int) geometry.getFatBytes());
+        fatEntries = new int[volume.getFat().size()];
+        raw.asIntBuffer().get(fatEntries);
+        for (int i = 0; i < fatEntries.length; i++) {
+            fatEntries[i] &= FatTable.ENTRY_MASK;
+        }
+
+        SplittableRandom random = new SplittableRandom(42);
+        clusterIndexes = new long[4096];
+        for (int i = 0; i < clusterIndexes.length; i++) {
+            clusterIndexes[i] = random.nextLong(extents.clusterCount());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        volume.close();
+    }
+
+    /** Follows the chain one FAT entry at a time. */
+    @Benchmark
+    public long walkChain() {
+        FatTable fat = volume.getFat();
+        long clusters = 0;
+        for (long cluster = firstCluster; cluster != -1; cluster = fat.next(cluster)) {
+            clusters++;
+        }
+        return clusters;
+    }
+
+    /** Builds the run-length extent list from scratch. */
+    @Benchmark
+    public ExtentList buildExtents() {
+        return new FatTable(fatEntries).extents(firstCluster);
+    }
+
+    /** Maps a cluster index within the file to a cluster number. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long lookupCluster() {
+        return extents.clusterAt(clusterIndexes[next++ & (clusterIndexes.length - 1)]);
+    }
+}
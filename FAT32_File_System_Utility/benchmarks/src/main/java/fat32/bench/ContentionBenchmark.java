@@ -0,0 +1,81 @@
+package fat32.bench;
+
+import fat32.BlockDevice;
+import fat32.ClusterChainChannel;
+import fat32.Fat32Session;
+import fat32.Fat32Volume;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many sessions sharing one volume, each resolving a path and reading a
+ * small file. Compare the per-thread-count results to see how throughput
+ * scales; the RAF device serialises on its file pointer, the others should not.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedVolume {
+        @Param({"MMAP", "CHANNEL", "RAF"})
+        public BlockDevice.Mode mode;
+
+        Fat32Volume volume;
+
+        @Setup
+        public void setUp() throws IOException {
+            volume = Fat32Volume.open(BenchmarkImage.get().toString(), mode, Fat32Volume.DEFAULT_DIR_CACHE_BYTES);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            volume.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        Fat32Session session;
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        SplittableRandom random;
+
+        @Setup
+        public void setUp(SharedVolume shared) {
+            session = shared.volume.newSession();
+            random = new SplittableRandom(Thread.currentThread().getId());
+        }
+    }
+
+    private static int readOne(Client client) throws IOException {
+        String path = "/HUGE/" + BenchmarkImage.hugeName(client.random.nextInt(BenchmarkImage.HUGE_ENTRIES));
+        try (ClusterChainChannel channel = client.session.open(path)) {
+            return channel.read(client.buffer.clear());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int oneThread(Client client) throws IOException {
+        return readOne(client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int fourThreads(Client client) throws IOException {
+        return readOne(client);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int allCores(Client client) throws IOException {
+        return readOne(client);
+    }
+}
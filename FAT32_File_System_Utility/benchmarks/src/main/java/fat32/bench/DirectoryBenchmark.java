@@ -0,0 +1,79 @@
+package fat32.bench;
+
+import fat32.DirEntry;
+import fat32.DirEntryView;
+import fat32.Directory;
+import fat32.DirectoryCursor;
+import fat32.Fat32Volume;
+import fat32.PathResolver;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory decoding and name lookup: a cold decode of a 64K entry
+ * directory, an allocation-free scan of it, and warm hash lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryBenchmark {
+
+    private Fat32Volume volume;
+    private long hugeCluster;
+    private Directory huge;
+    private String[] names;
+    private int next;
+    private final DirEntryView view = new DirEntryView();
+    private final String lastName = BenchmarkImage.hugeName(BenchmarkImage.HUGE_ENTRIES - 2); // short name, no LFN
+    private final String deepPath = BenchmarkImage.deepPath();
+
+    @Setup
+    public void setUp() throws IOException {
+        volume = Fat32Volume.open(BenchmarkImage.get().toString());
+        PathResolver.Resolved resolved = volume.getResolver().resolve("/", "/HUGE");
+        hugeCluster = resolved.getCluster();
+        huge = volume.directory(hugeCluster);
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = BenchmarkImage.hugeName((i * 64 + 7) % BenchmarkImage.HUGE_ENTRIES);
+        }
+        volume.getResolver().resolve("/", deepPath); // warm the path memo
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        volume.close();
+    }
+
+    /** Decodes every entry of /HUGE, long names included, into a fresh Directory. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Directory decodeHugeDirectory() throws IOException {
+        return Directory.read(volume.getDevice(), volume.getGeometry(), hugeCluster, volume.getFat().extents(hugeCluster));
+    }
+
+    /** Byte-wise scan of /HUGE for its last short-named entry through one flyweight. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean scanHugeDirectory() throws IOException {
+        DirectoryCursor cursor = new DirectoryCursor(volume.getDevice(), volume.getGeometry(), volume.getFat().extents(hugeCluster));
+        return cursor.find(lastName, view);
+    }
+
+    /** Name lookup in an already decoded directory, short and long names alternating. */
+    @Benchmark
+    public DirEntry lookupCached() {
+        return huge.find(names[next++ & (names.length - 1)]);
+    }
+
+    /** Resolves a 34-component path once every prefix is memoised. */
+    @Benchmark
+    public PathResolver.Resolved resolveDeepPath() throws IOException {
+        return volume.getResolver().resolve("/", deepPath);
+    }
+}
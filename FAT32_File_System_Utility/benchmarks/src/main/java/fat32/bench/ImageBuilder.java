@@ -0,0 +1,326 @@
+package fat32.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds FAT32 images for the benchmarks. The same calls always produce the
+ * same bytes: clusters are handed out in order and file contents are a
+ * function of the file's seed and offset.
+ */
+public class ImageBuilder {
+
+    private static final int RESERVED_SECTORS = 32;
+    private static final int NUMBER_OF_FATS = 2;
+    private static final int END_OF_CHAIN = 0x0FFFFFFF;
+
+    private final int bytesPerSector;
+    private final int sectorsPerCluster;
+    private final int clusterBytes;
+    private final int clusterCount;
+    private final int[] fat;
+    private final Dir root = new Dir(null, "");
+    private final List<FileData> files = new ArrayList<>();
+    private int nextFree = 2;
+
+    public ImageBuilder(int bytesPerSector, int sectorsPerCluster, int clusterCount) {
+        this.bytesPerSector = bytesPerSector;
+        this.sectorsPerCluster = sectorsPerCluster;
+        this.clusterBytes = bytesPerSector * sectorsPerCluster;
+        this.clusterCount = clusterCount;
+        this.fat = new int[clusterCount + 2];
+        fat[0] = 0x0FFFFFF8;
+        fat[1] = END_OF_CHAIN;
+    }
+
+    public Dir root() {
+        return root;
+    }
+
+    /** Contents of the file created with {@code seed} at byte {@code offset}. */
+    public static byte contentAt(int seed, long offset) {
+        return (byte) (offset * 31 + seed + (offset >>> 8));
+    }
+
+    public class Dir {
+        private final Dir parent;
+        private final String name;
+        private final List<Entry> entries = new ArrayList<>();
+        private final Set<String> shortNames = new HashSet<>();
+        private final Map<String, Integer> nextTail = new HashMap<>(); // next ~N to try per stem and extension
+        private int[] chain;
+
+        private Dir(Dir parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        public Dir mkdir(String name) {
+            Dir child = new Dir(this, name);
+            entries.add(new Entry(name, shortName(name), 0x10, child, null));
+            return child;
+        }
+
+        /** A file whose clusters are allocated back to back. */
+        public Dir file(String name, long size) {
+            return file(name, size, 0);
+        }
+
+        /** A file with {@code gap} free clusters left after each of its clusters. */
+        public Dir file(String name, long size, int gap) {
+            int clusters = (int) Math.max(1, (size + clusterBytes - 1) / clusterBytes);
+            int[] chain = allocate(clusters, gap);
+            FileData data = new FileData(chain, size, files.size());
+            files.add(data);
+            entries.add(new Entry(name, shortName(name), 0x20, null, data));
+            return this;
+        }
+
+        private String shortName(String longName) {
+            String upper = longName.toUpperCase(Locale.ROOT);
+            int dot = upper.lastIndexOf('.');
+            String base = dot > 0 ? upper.substring(0, dot) : upper;
+            String ext = dot > 0 ? upper.substring(dot + 1) : "";
+            if (base.length() <= 8 && ext.length() <= 3 && base.matches("[A-Z0-9_]+") && ext.matches("[A-Z0-9_]*")
+                    && longName.equals(upper) && shortNames.add(pad(base, ext))) {
+                return pad(base, ext);
+            }
+            String stem = base.replaceAll("[^A-Z0-9_]", "");
+            String suffixExt = ext.replaceAll("[^A-Z0-9_]", "");
+            suffixExt = suffixExt.substring(0, Math.min(3, suffixExt.length()));
+            String key = stem.substring(0, Math.min(stem.length(), 6)) + "." + suffixExt; // what "~1" keeps of the stem
+            for (int n = nextTail.getOrDefault(key, 1); ; n++) {
+                String tail = "~" + n;
+                String candidate = pad(stem.substring(0, Math.min(stem.length(), 8 - tail.length())) + tail, suffixExt);
+                if (shortNames.add(candidate)) {
+                    nextTail.put(key, n + 1);
+                    return candidate;
+                }
+            }
+        }
+    }
+
+    private static String pad(String base, String ext) {
+        return String.format("%-8s%-3s", base, ext);
+    }
+
+    private static class Entry {
+        final String longName;
+        final String shortName; // 11 characters, space padded
+        final int attributes;
+        final Dir dir;
+        final FileData file;
+
+        Entry(String longName, String shortName, int attributes, Dir dir, FileData file) {
+            this.longName = longName;
+            this.shortName = shortName;
+            this.attributes = attributes;
+            this.dir = dir;
+            this.file = file;
+        }
+
+        boolean needsLongName() {
+            String compact = shortName.substring(0, 8).trim()
+                    + (shortName.substring(8).isBlank() ? "" : "." + shortName.substring(8).trim());
+            return !compact.equals(longName);
+        }
+
+        long firstCluster() {
+            return dir != null ? dir.chain[0] : file.chain[0];
+        }
+    }
+
+    private static class FileData {
+        final int[] chain;
+        final long size;
+        final int seed;
+
+        FileData(int[] chain, long size, int seed) {
+            this.chain = chain;
+            this.size = size;
+            this.seed = seed;
+        }
+    }
+
+    private int[] allocate(int clusters, int gap) {
+        int[] chain = new int[clusters];
+        for (int i = 0; i < clusters; i++) {
+            if (nextFree >= fat.length) {
+                throw new IllegalStateException("Image is full, increase the cluster count");
+            }
+            chain[i] = nextFree;
+            nextFree += 1 + gap;
+        }
+        for (int i = 0; i + 1 < clusters; i++) {
+            fat[chain[i]] = chain[i + 1];
+        }
+        fat[chain[clusters - 1]] = END_OF_CHAIN;
+        return chain;
+    }
+
+    /** Writes the image to {@code path}, replacing anything already there. */
+    public Path write(Path path) throws IOException {
+        allocateDirectories(root);
+        long fatSectors = ((long) fat.length * 4 + bytesPerSector - 1) / bytesPerSector;
+        long dataOffset = (RESERVED_SECTORS + NUMBER_OF_FATS * fatSectors) * bytesPerSector;
+        long totalSectors = dataOffset / bytesPerSector + (long) clusterCount * sectorsPerCluster;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE)) {
+            ByteBuffer boot = bootSector(fatSectors, totalSectors);
+            channel.write(boot.duplicate(), 0);
+            channel.write(boot.duplicate(), 6L * bytesPerSector);
+            ByteBuffer fsInfo = fsInfo();
+            channel.write(fsInfo.duplicate(), bytesPerSector);
+            channel.write(fsInfo.duplicate(), 7L * bytesPerSector);
+
+            ByteBuffer fatBytes = ByteBuffer.allocate(fat.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            fatBytes.asIntBuffer().put(fat);
+            for (int i = 0; i < NUMBER_OF_FATS; i++) {
+                channel.write(fatBytes.duplicate(), (RESERVED_SECTORS + i * fatSectors) * bytesPerSector);
+            }
+
+            writeDirectories(channel, root, dataOffset);
+            ByteBuffer buffer = ByteBuffer.allocate(clusterBytes);
+            for (FileData file : files) {
+                for (int i = 0; i < file.chain.length; i++) {
+                    buffer.clear();
+                    long base = (long) i * clusterBytes;
+                    for (int b = 0; b < clusterBytes; b++) {
+                        buffer.put(base + b < file.size ? contentAt(file.seed, base + b) : 0);
+                    }
+                    channel.write(buffer.flip(), dataOffset + (file.chain[i] - 2L) * clusterBytes);
+                }
+            }
+            // Make sure the image covers every cluster even if the last ones are unused
+            long size = dataOffset + (long) clusterCount * clusterBytes;
+            if (channel.size() < size) {
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+        }
+        return path;
+    }
+
+    private void allocateDirectories(Dir dir) {
+        int slots = dir == root ? 1 : 2; // volume label, or "." and ".."
+        for (Entry entry : dir.entries) {
+            slots += 1 + (entry.needsLongName() ? (entry.longName.length() + 12) / 13 : 0);
+        }
+        int clusters = (slots * 32 + clusterBytes - 1) / clusterBytes;
+        dir.chain = allocate(Math.max(1, clusters), 0);
+        for (Entry entry : dir.entries) {
+            if (entry.dir != null) {
+                allocateDirectories(entry.dir);
+            }
+        }
+    }
+
+    private void writeDirectories(FileChannel channel, Dir dir, long dataOffset) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(dir.chain.length * clusterBytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (dir == root) {
+            writeEntry(out, "BENCHVOL   ", 0x08, 0, 0);
+        } else {
+            writeEntry(out, ".          ", 0x10, dir.chain[0], 0);
+            writeEntry(out, "..         ", 0x10, dir.parent == root ? 0 : dir.parent.chain[0], 0);
+        }
+        for (Entry entry : dir.entries) {
+            if (entry.needsLongName()) {
+                writeLongName(out, entry);
+            }
+            writeEntry(out, entry.shortName, entry.attributes, entry.firstCluster(), entry.file == null ? 0 : entry.file.size);
+        }
+        for (int i = 0; i < dir.chain.length; i++) {
+            channel.write(out.slice(i * clusterBytes, clusterBytes), dataOffset + (dir.chain[i] - 2L) * clusterBytes);
+        }
+        for (Entry entry : dir.entries) {
+            if (entry.dir != null) {
+                writeDirectories(channel, entry.dir, dataOffset);
+            }
+        }
+    }
+
+    private static void writeEntry(ByteBuffer out, String shortName, int attributes, long cluster, long size) {
+        int base = out.position();
+        out.put(shortName.getBytes(StandardCharsets.US_ASCII));
+        out.put((byte) attributes);
+        out.put(new byte[8]); // NT reserved, creation time and date, access date
+        out.putShort((short) (cluster >>> 16));
+        out.putShort((short) 0x6000); // 12:00:00
+        out.putShort((short) 0x5821); // 2024-01-01
+        out.putShort((short) cluster);
+        out.putInt((int) size);
+        out.position(base + 32);
+    }
+
+    private static void writeLongName(ByteBuffer out, Entry entry) {
+        int checksum = 0;
+        for (byte b : entry.shortName.getBytes(StandardCharsets.US_ASCII)) {
+            checksum = (((checksum & 1) << 7) + (checksum >> 1) + (b & 0xFF)) & 0xFF;
+        }
+        int[] offsets = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+        String name = entry.longName;
+        int fragments = (name.length() + 12) / 13;
+        for (int sequence = fragments; sequence >= 1; sequence--) {
+            int base = out.position();
+            out.put(base, (byte) (sequence | (sequence == fragments ? 0x40 : 0)));
+            out.put(base + 11, (byte) 0x0F);
+            out.put(base + 13, (byte) checksum);
+            for (int i = 0; i < 13; i++) {
+                int index = (sequence - 1) * 13 + i;
+                char c = index < name.length() ? name.charAt(index) : index == name.length() ? 0 : (char) 0xFFFF;
+                out.putChar(base + offsets[i], c);
+            }
+            out.position(base + 32);
+        }
+    }
+
+    private ByteBuffer bootSector(long fatSectors, long totalSectors) {
+        ByteBuffer boot = ByteBuffer.allocate(bytesPerSector).order(ByteOrder.LITTLE_ENDIAN);
+        boot.put(0, new byte[] {(byte) 0xEB, 0x58, (byte) 0x90});
+        boot.put(3, "MSWIN4.1".getBytes(StandardCharsets.US_ASCII));
+        boot.putShort(0x0B, (short) bytesPerSector);
+        boot.put(0x0D, (byte) sectorsPerCluster);
+        boot.putShort(0x0E, (short) RESERVED_SECTORS);
+        boot.put(0x10, (byte) NUMBER_OF_FATS);
+        boot.put(0x15, (byte) 0xF8);
+        boot.putInt(0x20, (int) totalSectors);
+        boot.putInt(0x24, (int) fatSectors);
+        boot.putInt(0x2C, root.chain[0]);
+        boot.putShort(0x30, (short) 1);
+        boot.putShort(0x32, (short) 6);
+        boot.put(0x42, (byte) 0x29);
+        boot.put(0x47, "BENCHVOL   ".getBytes(StandardCharsets.US_ASCII));
+        boot.put(0x52, "FAT32   ".getBytes(StandardCharsets.US_ASCII));
+        boot.put(510, (byte) 0x55);
+        boot.put(511, (byte) 0xAA);
+        return boot;
+    }
+
+    private ByteBuffer fsInfo() {
+        ByteBuffer fsInfo = ByteBuffer.allocate(bytesPerSector).order(ByteOrder.LITTLE_ENDIAN);
+        int free = 0;
+        for (int i = 2; i < fat.length; i++) {
+            if (fat[i] == 0) {
+                free++;
+            }
+        }
+        fsInfo.putInt(0, 0x41615252);
+        fsInfo.putInt(484, 0x61417272);
+        fsInfo.putInt(488, free);
+        fsInfo.putInt(492, nextFree);
+        fsInfo.putInt(508, 0xAA550000);
+        return fsInfo;
+    }
+}
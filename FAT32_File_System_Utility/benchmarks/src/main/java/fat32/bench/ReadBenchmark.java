@@ -0,0 +1,83 @@
+package fat32.bench;
+
+import fat32.BlockDevice;
+import fat32.ClusterChainChannel;
+import fat32.DirEntry;
+import fat32.Fat32Volume;
+import fat32.ReadAheadChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File read throughput through each block device. The sequential
+ * benchmarks read a whole 64 MB file through a 64 KB buffer, with and
+ * without read-ahead; the random one reads 4 KB at random offsets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+    @Param({"MMAP", "CHANNEL", "RAF"})
+    public BlockDevice.Mode mode;
+
+    @Param({"CONTIG.BIN", "FRAG.BIN"})
+    public String file;
+
+    private Fat32Volume volume;
+    private DirEntry entry;
+    private final ByteBuffer sequentialBuffer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer randomBuffer = ByteBuffer.allocate(4096);
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    @Setup
+    public void setUp() throws IOException {
+        volume = Fat32Volume.open(BenchmarkImage.get().toString(), mode, Fat32Volume.DEFAULT_DIR_CACHE_BYTES);
+        entry = volume.getResolver().resolve("/", file).getEntry();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        volume.close();
+    }
+
+    @Benchmark
+    public long sequential() throws IOException {
+        long total = 0;
+        try (ClusterChainChannel channel = volume.open(entry)) {
+            int n;
+            while ((n = channel.read(sequentialBuffer.clear())) > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long sequentialReadAhead() throws IOException {
+        long total = 0;
+        try (ReadAheadChannel channel = volume.openSequential(entry)) {
+            int n;
+            while ((n = channel.read(sequentialBuffer.clear())) > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int random4k() throws IOException {
+        try (ClusterChainChannel channel = volume.open(entry)) {
+            channel.position(random.nextLong(entry.getSize() - randomBuffer.capacity()));
+            return channel.read(randomBuffer.clear());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package fat32;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access view of a FAT32 image. Implementations hand out little-endian
+ * buffers so directory entries and FAT words can be decoded in place.
+ */
+public interface BlockDevice extends Closeable {
+
+    enum Mode { MMAP, CHANNEL, RAF }
+
+    /** Size of the underlying image in bytes. */
+    long size();
+
+    /** Fills {@code dst} from {@code position}, failing if the image ends first. */
+    void read(long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Returns a little-endian buffer holding {@code length} bytes starting at
+     * {@code position} (fewer if the image ends first), indexed from zero.
+     * The buffer may share memory with the image and must not be written to.
+     */
+    ByteBuffer view(long position, int length) throws IOException;
+
+    /** Whether reads are served from a memory mapping, which the kernel already reads ahead. */
+    default boolean isMapped() {
+        return false;
+    }
+
+    /** Heap memory held by the device's own caches. */
+    default long cachedBytes() {
+        return 0;
+    }
+
+    /** Drops whatever the device caches; it is read back on demand. */
+    default void clearCache() {
+    }
+
+    /**
+     * Opens {@code path} with the given access mode. A compressed container
+     * (see {@link CompressedBlockDevice#pack}) is recognised by its header
+     * and always read through its chunk cache, whatever the mode.
+     */
+    static BlockDevice open(String path, Mode mode) throws IOException {
+        return open(path, mode, CompressedBlockDevice.DEFAULT_CACHE_BYTES);
+    }
+
+    /** As {@link #open(String, Mode)}, with a chunk cache of {@code cacheBytes} if it is a container. */
+    static BlockDevice open(String path, Mode mode, long cacheBytes) throws IOException {
+        if (CompressedBlockDevice.isContainer(Path.of(path))) {
+            return CompressedBlockDevice.open(Path.of(path), cacheBytes);
+        }
+        if (mode == Mode.RAF) {
+            return new RandomAccessBlockDevice(new RandomAccessFile(path, "r"));
+        }
+        if (mode == Mode.CHANNEL) {
+            return new ChannelBlockDevice(FileChannel.open(Path.of(path), StandardOpenOption.READ));
+        }
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            return new MappedBlockDevice(channel);
+        }
+    }
+}
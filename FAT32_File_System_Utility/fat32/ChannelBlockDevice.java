@@ -0,0 +1,54 @@
+package fat32;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional reads on a FileChannel. There is no shared file pointer, so
+ * any number of threads can read through one instance without locking.
+ */
+public class ChannelBlockDevice implements BlockDevice {
+
+    private final FileChannel channel;
+    private final long size;
+
+    public ChannelBlockDevice(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        Metrics.increment(Metrics.Counter.DEVICE_READS);
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            Metrics.increment(Metrics.Counter.READ_SYSCALLS);
+            if (n < 0) {
+                throw new EOFException("Read of " + dst.remaining() + " bytes at " + position + " is outside the image");
+            }
+            Metrics.add(Metrics.Counter.BYTES_READ, n);
+            position += n;
+        }
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        length = (int) Math.max(0, Math.min(length, size - position));
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        read(position, buf);
+        return buf.flip().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
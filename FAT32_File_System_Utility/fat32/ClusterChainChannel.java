@@ -0,0 +1,118 @@
+package fat32;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only channel over a file's cluster chain. Each read is served from
+ * a run of physically contiguous clusters, so a large destination buffer
+ * turns into one device read per extent instead of one per cluster.
+ */
+public class ClusterChainChannel implements SeekableByteChannel {
+
+    private final BlockDevice device;
+    private final ExtentList extents;
+    private final VolumeGeometry geometry;
+    private final long clusterBytes;
+    private final long size;
+    private long position;
+    private volatile boolean open = true;
+
+    /**
+     * @param size file size from the directory entry
+     */
+    public ClusterChainChannel(BlockDevice device, VolumeGeometry geometry, ExtentList extents, long size) {
+        this.device = device;
+        this.extents = extents;
+        this.geometry = geometry;
+        this.clusterBytes = geometry.getClusterBytes();
+        // Never trust the size past what the chain actually covers
+        this.size = Math.min(size, extents.clusterCount() * clusterBytes);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    /**
+     * Reads from {@code position} without moving the channel's own position.
+     * Like {@link java.nio.channels.FileChannel#read(ByteBuffer, long)} it is
+     * safe to call from several threads at once.
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        int extent = extents.extentOf(position / clusterBytes);
+        while (dst.hasRemaining() && position < size) {
+            long extentStart = extents.chainIndex(extent) * clusterBytes; // file offset of the run
+            long extentEnd = Math.min(size, extentStart + extents.length(extent) * clusterBytes);
+            int n = (int) Math.min(dst.remaining(), extentEnd - position);
+            long diskOffset = geometry.clusterOffset(extents.start(extent)) + (position - extentStart);
+            device.read(diskOffset, dst.slice(dst.position(), n));
+            dst.position(dst.position() + n);
+            position += n;
+            total += n;
+            extent++;
+        }
+        return total;
+    }
+
+    /** Blocking stream over the rest of the file from the current position. */
+    public InputStream stream() {
+        return Channels.newInputStream(this);
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public ClusterChainChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,352 @@
+package fat32;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only {@link BlockDevice} over a compressed image container. The
+ * image is cut into fixed-size chunks that are compressed independently,
+ * behind a table of chunk offsets, so any byte is one chunk inflation
+ * away. Chunks that are all zeros, such as unused clusters or holes in a
+ * sparse source, take no space at all. Inflated chunks are kept in an LRU
+ * cache bounded in bytes, so repeated FAT and directory reads are memory
+ * copies. Safe for concurrent readers.
+ * <p>
+ * Layout, little-endian: magic "FAT32CHZ", version, chunk size, image
+ * size, chunk count, then chunk count + 1 file offsets; chunk i is stored
+ * in [offset i, offset i + 1). An empty chunk is all zeros, a chunk as long
+ * as its inflated size is stored as is, and anything shorter is a zlib stream.
+ */
+public class CompressedBlockDevice implements BlockDevice {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+    public static final int MAX_CHUNK_SIZE = 64 << 20;
+
+    private static final long MAGIC = 0x5A48_4332_3354_4146L; // "FAT32CHZ", little-endian
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private static class Chunk {
+        final byte[] data;
+        volatile long lastUsed;
+
+        Chunk(byte[] data, long lastUsed) {
+            this.data = data;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final long size;
+    private final long[] offsets;
+    private final byte[] zeros;
+    private final long maxCacheBytes;
+    private final ConcurrentHashMap<Integer, Chunk> cache = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    public CompressedBlockDevice(FileChannel channel, long maxCacheBytes) throws IOException {
+        this.channel = channel;
+        this.maxCacheBytes = maxCacheBytes;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(0, header);
+        if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+            throw new IOException("Not a compressed image container");
+        }
+        this.chunkSize = header.getInt(12);
+        this.size = header.getLong(16);
+        int count = header.getInt(24);
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE || count < 0 || count >= Integer.MAX_VALUE / 8 || (long) count * chunkSize < size) {
+            throw new IOException("Corrupt compressed image header");
+        }
+        ByteBuffer table = ByteBuffer.allocate((count + 1) * 8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(HEADER_SIZE, table);
+        this.offsets = new long[count + 1];
+        table.flip().asLongBuffer().get(offsets);
+        for (int i = 0; i < count; i++) {
+            if (offsets[i] > offsets[i + 1]) {
+                throw new IOException("Corrupt compressed image chunk table at chunk " + i);
+            }
+        }
+        if (count > 0 && (offsets[0] < HEADER_SIZE || offsets[count] > channel.size())) {
+            throw new IOException("Corrupt compressed image chunk table");
+        }
+        this.zeros = new byte[chunkSize];
+    }
+
+    /** Opens {@code container} with an inflated-chunk cache of {@code maxCacheBytes}. */
+    public static CompressedBlockDevice open(Path container, long maxCacheBytes) throws IOException {
+        FileChannel channel = FileChannel.open(container, StandardOpenOption.READ);
+        try {
+            return new CompressedBlockDevice(channel, maxCacheBytes);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Whether {@code file} starts like a container written by {@link #pack}. */
+    public static boolean isContainer(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+                // keep reading, a short read is not the end of the file
+            }
+            return !magic.hasRemaining() && magic.getLong(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Writes {@code image} to {@code container} in chunks of
+     * {@code chunkSize} bytes. The container appears atomically once
+     * complete. Returns its size.
+     */
+    public static long pack(Path image, Path container, int chunkSize) throws IOException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + " bytes");
+        }
+        if (JournaledBlockDevice.isPending(JournaledBlockDevice.journalFor(image))) {
+            throw new IOException(image + " has an unfinished commit, open it writable (--write) to replay it first");
+        }
+        Path temp = container.resolveSibling(container.getFileName() + ".tmp");
+        long position;
+        try (FileChannel in = FileChannel.open(image, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long count = (size + chunkSize - 1) / chunkSize;
+            if (count >= Integer.MAX_VALUE / 8) {
+                throw new IOException("Image too large for chunks of " + chunkSize + " bytes");
+            }
+            long[] offsets = new long[(int) count + 1];
+            position = HEADER_SIZE + offsets.length * 8L; // data follows the table, which is written last
+            ByteBuffer raw = ByteBuffer.allocate(chunkSize);
+            byte[] packed = new byte[chunkSize];
+            byte[] zeros = new byte[chunkSize];
+            Deflater deflater = new Deflater();
+            try {
+                for (int i = 0; i < count; i++) {
+                    int length = (int) Math.min(chunkSize, size - (long) i * chunkSize);
+                    raw.clear().limit(length);
+                    while (raw.hasRemaining()) {
+                        if (in.read(raw, (long) i * chunkSize + raw.position()) < 0) {
+                            throw new EOFException("Image shrank while packing: " + image);
+                        }
+                    }
+                    offsets[i] = position;
+                    if (Arrays.mismatch(raw.array(), 0, length, zeros, 0, length) < 0) {
+                        continue; // all zeros, stored as an empty chunk
+                    }
+                    deflater.reset();
+                    deflater.setInput(raw.array(), 0, length);
+                    deflater.finish();
+                    int n = 0;
+                    while (!deflater.finished() && n < length) {
+                        n += deflater.deflate(packed, n, length - n);
+                    }
+                    ByteBuffer stored = deflater.finished() && n < length
+                            ? ByteBuffer.wrap(packed, 0, n)
+                            : ByteBuffer.wrap(raw.array(), 0, length); // did not shrink, keep it as is
+                    while (stored.hasRemaining()) {
+                        position += out.write(stored, position);
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+            offsets[(int) count] = position;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(VERSION).putInt(chunkSize).putLong(size).putInt((int) count).putInt(0);
+            for (long offset : offsets) {
+                header.putLong(offset);
+            }
+            header.flip();
+            long at = 0;
+            while (header.hasRemaining()) {
+                at += out.write(header, at);
+            }
+            out.force(true);
+        }
+        Files.move(temp, container, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return position;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        if (position < 0 || position + dst.remaining() > size) {
+            throw new EOFException("Read of " + dst.remaining() + " bytes at " + position + " is outside the image");
+        }
+        Metrics.increment(Metrics.Counter.DEVICE_READS);
+        while (dst.hasRemaining()) {
+            int index = (int) (position / chunkSize);
+            int within = (int) (position % chunkSize);
+            int n = Math.min(dst.remaining(), chunkLength(index) - within);
+            dst.put(chunk(index), within, n);
+            position += n;
+        }
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        if (position < 0 || position > size) {
+            throw new EOFException("Position " + position + " is outside the image");
+        }
+        length = (int) Math.max(0, Math.min(length, size - position));
+        if (length == 0) {
+            return ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN); // at the end there is no chunk to look in
+        }
+        int within = (int) (position % chunkSize);
+        if (within + length <= chunkSize) {
+            // Inside one chunk: hand out the cached chunk itself
+            Metrics.increment(Metrics.Counter.DEVICE_READS);
+            byte[] chunk = chunk((int) (position / chunkSize));
+            return ByteBuffer.wrap(chunk, within, length).slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        read(position, buf);
+        return buf.flip().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Bytes of inflated chunks currently cached. */
+    @Override
+    public long cachedBytes() {
+        return cachedBytes.get();
+    }
+
+    @Override
+    public synchronized void clearCache() {
+        for (Map.Entry<Integer, Chunk> entry : cache.entrySet()) {
+            if (cache.remove(entry.getKey(), entry.getValue())) {
+                cachedBytes.addAndGet(-entry.getValue().data.length);
+            }
+        }
+    }
+
+    private int chunkLength(int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    private byte[] chunk(int index) throws IOException {
+        if (offsets[index] == offsets[index + 1]) {
+            return zeros;
+        }
+        Chunk chunk = cache.get(index);
+        if (chunk != null) {
+            Metrics.increment(Metrics.Counter.CHUNK_CACHE_HITS);
+            chunk.lastUsed = clock.getAndIncrement();
+            return chunk.data;
+        }
+        try {
+            chunk = cache.computeIfAbsent(index, key -> {
+                Metrics.increment(Metrics.Counter.CHUNK_CACHE_MISSES);
+                try {
+                    Chunk loaded = new Chunk(inflate(key), clock.getAndIncrement());
+                    cachedBytes.addAndGet(loaded.data.length);
+                    return loaded;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (cachedBytes.get() > maxCacheBytes) {
+            evict(index);
+        }
+        return chunk.data;
+    }
+
+    private byte[] inflate(int index) throws IOException {
+        int length = chunkLength(index);
+        ByteBuffer stored = ByteBuffer.allocate((int) (offsets[index + 1] - offsets[index]));
+        readFully(offsets[index], stored);
+        if (stored.capacity() == length) {
+            return stored.array();
+        }
+        byte[] data = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored.array());
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int k = inflater.inflate(data, n, length - n);
+                if (k == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != length) {
+                throw new IOException("Chunk " + index + " inflates to " + n + " bytes instead of " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Chunk " + index + " is corrupt: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    // Like DirectoryCache, but down to 7/8 of the bound so the sort is paid once per several misses
+    private synchronized void evict(int keep) {
+        if (cachedBytes.get() <= maxCacheBytes) {
+            return; // another thread got here first
+        }
+        long target = maxCacheBytes - maxCacheBytes / 8;
+        List<Map.Entry<Integer, Chunk>> byAge = new ArrayList<>(cache.entrySet());
+        byAge.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        for (Map.Entry<Integer, Chunk> eldest : byAge) {
+            if (cachedBytes.get() <= target) {
+                break;
+            }
+            if (eldest.getKey() == keep) {
+                continue; // never evict the chunk we just inflated
+            }
+            if (cache.remove(eldest.getKey(), eldest.getValue())) {
+                cachedBytes.addAndGet(-eldest.getValue().data.length);
+            }
+        }
+    }
+
+    private void readFully(long position, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            Metrics.increment(Metrics.Counter.READ_SYSCALLS);
+            if (n < 0) {
+                throw new EOFException("Compressed image is truncated at " + position);
+            }
+            Metrics.add(Metrics.Counter.BYTES_READ, n);
+            position += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,211 @@
+package fat32;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Searches the contents of every file below a directory for a set of
+ * patterns. Files are streamed through a {@link PatternMatcher} a buffer
+ * at a time, never read whole, one fork-join task per file. Files larger
+ * than a segment are split into segments that overlap by the longest
+ * pattern, so a single huge file still keeps every worker busy.
+ */
+public class ContentSearch {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    public static final int DEFAULT_MAX_MATCHES = 100_000;
+
+    /** One occurrence of a pattern. */
+    public static class Match {
+        private final String path;
+        private final long offset;
+        private final int pattern;
+
+        Match(String path, long offset, int pattern) {
+            this.path = path;
+            this.offset = offset;
+            this.pattern = pattern;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /** Byte offset of the first byte of the match within the file. */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** Index of the pattern that matched. */
+        public int getPattern() {
+            return pattern;
+        }
+    }
+
+    private final Fat32Volume volume;
+    private final PatternMatcher matcher;
+    private final TreeWalker walker;
+    private final long segmentSize;
+    private final int maxMatches;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final AtomicLong found = new AtomicLong();
+
+    /**
+     * @param maxMatches matches kept for {@link #search}'s result; later ones are only counted
+     */
+    public ContentSearch(Fat32Volume volume, PatternMatcher matcher, ForkJoinPool pool, int bufferSize, long segmentSize,
+            int maxMatches) {
+        this.volume = volume;
+        this.matcher = matcher;
+        this.walker = new TreeWalker(volume, pool);
+        this.segmentSize = Math.max(segmentSize, bufferSize);
+        this.maxMatches = maxMatches;
+        // As in Extractor: one per worker plus one for the submitting thread; a scan never holds two
+        int count = pool.getParallelism() + 1;
+        this.buffers = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            // Heap buffers, so the RAF device can read straight into the array
+            buffers.add(ByteBuffer.allocate(bufferSize));
+        }
+    }
+
+    public ContentSearch(Fat32Volume volume, PatternMatcher matcher) {
+        this(volume, matcher, ForkJoinPool.commonPool(), DEFAULT_BUFFER_SIZE, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_MATCHES);
+    }
+
+    /** Files searched so far. */
+    public long files() {
+        return files.sum();
+    }
+
+    /** Bytes searched so far. */
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    /** Matches found so far, including any beyond the limit that were not kept. */
+    public long matches() {
+        return found.get();
+    }
+
+    /**
+     * Matches below the directory {@code start}, sorted by path and then
+     * offset. If there are more than the limit, which ones are kept depends
+     * on scheduling; compare {@link #matches()} with the list's size.
+     */
+    public List<Match> search(PathResolver.Resolved start) throws IOException {
+        Queue<Match> matches = new ConcurrentLinkedQueue<>();
+        walker.walk(start, (path, entry) -> {
+            if (!entry.isDirectory()) {
+                search(path, entry, matches);
+            }
+        });
+        List<Match> sorted = new ArrayList<>(matches);
+        sorted.sort(Comparator.comparing(Match::getPath).thenComparingLong(Match::getOffset)
+                .thenComparingInt(Match::getPattern));
+        return sorted;
+    }
+
+    private void search(String path, DirEntry entry, Queue<Match> matches) throws IOException {
+        try (ClusterChainChannel channel = volume.open(entry)) {
+            long size = channel.size();
+            if (size <= segmentSize) {
+                scan(channel, path, 0, size, matches);
+            } else {
+                // Called from a TreeWalker task, so the segments fork onto the same pool
+                List<RecursiveAction> segments = new ArrayList<>();
+                for (long from = 0; from < size; from += segmentSize) {
+                    long to = Math.min(size, from + segmentSize);
+                    segments.add(new SegmentTask(channel, path, from, to, matches));
+                }
+                try {
+                    ForkJoinTask.invokeAll(segments);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+        files.increment();
+    }
+
+    // Reports matches starting in [from, to); reading runs on past `to` so matches crossing it are complete
+    private void scan(ClusterChainChannel channel, String path, long from, long to, Queue<Match> matches)
+            throws IOException {
+        long end = Math.min(channel.size(), to + matcher.maxLength() - 1);
+        ByteBuffer buffer = takeBuffer();
+        try {
+            int state = PatternMatcher.START;
+            long position = from;
+            PatternMatcher.Listener listener = (pattern, start) -> {
+                if (start < to && found.incrementAndGet() <= maxMatches) {
+                    matches.add(new Match(path, start, pattern));
+                }
+            };
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int n = channel.read(buffer, position);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                state = matcher.scan(buffer, position, state, listener);
+                position += n;
+            }
+            bytes.add(Math.min(position, to) - from);
+        } finally {
+            buffers.add(buffer);
+        }
+    }
+
+    private ByteBuffer takeBuffer() throws IOException {
+        try {
+            return buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a search buffer");
+        }
+    }
+
+    @SuppressWarnings("serial") // fork-join tasks are never serialized
+    private class SegmentTask extends RecursiveAction {
+        private final ClusterChainChannel channel;
+        private final String path;
+        private final long from;
+        private final long to;
+        private final Queue<Match> matches;
+
+        SegmentTask(ClusterChainChannel channel, String path, long from, long to, Queue<Match> matches) {
+            this.channel = channel;
+            this.path = path;
+            this.from = from;
+            this.to = to;
+            this.matches = matches;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                scan(channel, path, from, to, matches);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package fat32;
+
+/**
+ * A decoded short directory entry.
+ */
+public class DirEntry {
+
+    public static final int ATTR_READ_ONLY = 0x01;
+    public static final int ATTR_HIDDEN = 0x02;
+    public static final int ATTR_SYSTEM = 0x04;
+    public static final int ATTR_VOLUME_ID = 0x08;
+    public static final int ATTR_DIRECTORY = 0x10;
+    public static final int ATTR_ARCHIVE = 0x20;
+    public static final int ATTR_LONG_NAME = 0x0F;
+
+    private final String name;
+    private final String longName;
+    private final int attributes;
+    private final long firstCluster;
+    private final long size;
+
+    public DirEntry(String name, int attributes, long firstCluster, long size) {
+        this(name, null, attributes, firstCluster, size);
+    }
+
+    public DirEntry(String name, String longName, int attributes, long firstCluster, long size) {
+        this.name = name;
+        this.longName = longName;
+        this.attributes = attributes;
+        this.firstCluster = firstCluster;
+        this.size = size;
+    }
+
+    /** Upper-case 8.3 name, "NAME.EXT" or "NAME" when there is no extension. */
+    public String getName() {
+        return name;
+    }
+
+    /** VFAT long name, or null if the entry only has a short name. */
+    public String getLongName() {
+        return longName;
+    }
+
+    /** The long name if there is one, otherwise the short name. */
+    public String getDisplayName() {
+        return longName != null ? longName : name;
+    }
+
+    public int getAttributes() {
+        return attributes;
+    }
+
+    public long getFirstCluster() {
+        return firstCluster;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isDirectory() {
+        return (attributes & ATTR_DIRECTORY) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return getDisplayName() + ": Cluster=" + firstCluster + ", Size=" + size;
+    }
+}
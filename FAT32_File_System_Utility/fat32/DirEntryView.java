@@ -0,0 +1,206 @@
+package fat32;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a 32-byte short directory entry in a buffer. Accessors
+ * decode fields in place and name comparison works on the raw 8.3 bytes,
+ * so walking a directory with one view allocates nothing.
+ */
+public final class DirEntryView {
+
+    private ByteBuffer buffer;
+    private int base;
+
+    /** Points the view at the entry starting at {@code base} in {@code buffer}. */
+    public DirEntryView wrap(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+        return this;
+    }
+
+    /** 0x00 in the first byte marks the end of the directory. */
+    public boolean isEnd() {
+        return buffer.get(base) == 0x00;
+    }
+
+    public boolean isDeleted() {
+        return buffer.get(base) == (byte) 0xE5;
+    }
+
+    public int attributes() {
+        return buffer.get(base + 11) & 0xFF;
+    }
+
+    public boolean isLongName() {
+        return attributes() == DirEntry.ATTR_LONG_NAME;
+    }
+
+    public boolean isDirectory() {
+        return (attributes() & DirEntry.ATTR_DIRECTORY) != 0;
+    }
+
+    public long firstCluster() {
+        long high = buffer.getShort(base + 20) & 0xFFFF;
+        long low = buffer.getShort(base + 26) & 0xFFFF;
+        return (high << 16) + low;
+    }
+
+    /** File size, unsigned. */
+    public long size() {
+        return buffer.getInt(base + 28) & 0xFFFFFFFFL;
+    }
+
+    // Raw FAT timestamps: dates are (year - 1980) << 9 | month << 5 | day,
+    // times are hour << 11 | minute << 5 | seconds / 2
+    public int createTenths() {
+        return buffer.get(base + 13) & 0xFF;
+    }
+
+    public int createTime() {
+        return buffer.getShort(base + 14) & 0xFFFF;
+    }
+
+    public int createDate() {
+        return buffer.getShort(base + 16) & 0xFFFF;
+    }
+
+    public int accessDate() {
+        return buffer.getShort(base + 18) & 0xFFFF;
+    }
+
+    public int writeTime() {
+        return buffer.getShort(base + 22) & 0xFFFF;
+    }
+
+    public int writeDate() {
+        return buffer.getShort(base + 24) & 0xFFFF;
+    }
+
+    /** Checksum of the 11 name bytes, as stored in the long name entries that precede this one. */
+    public int shortNameChecksum() {
+        int sum = 0;
+        for (int i = 0; i < 11; i++) {
+            sum = (((sum & 1) << 7) + ((sum & 0xFF) >> 1) + (buffer.get(base + i) & 0xFF)) & 0xFF;
+        }
+        return sum;
+    }
+
+    /** Sequence byte of a long name entry; 0x40 marks the last fragment. */
+    public int lfnOrdinal() {
+        return buffer.get(base) & 0xFF;
+    }
+
+    /** Checksum of the short name a long name entry belongs to. */
+    public int lfnChecksum() {
+        return buffer.get(base + 13) & 0xFF;
+    }
+
+    /** UTF-16 code unit at byte {@code offset} of a long name entry. */
+    public char lfnChar(int offset) {
+        return buffer.getChar(base + offset);
+    }
+
+    /**
+     * Whether the entry is listed at all: not free, deleted, a volume label,
+     * hidden, system or long name, and with a printable base name. Path
+     * separators do not count as printable, they are never valid in a short name.
+     */
+    public boolean isVisible() {
+        int attr = attributes();
+        if ((attr & (DirEntry.ATTR_VOLUME_ID | DirEntry.ATTR_HIDDEN | DirEntry.ATTR_SYSTEM)) != 0 || isEnd() || isDeleted()) {
+            return false;
+        }
+        return printable(0, 8) && nameLength() > 0;
+    }
+
+    /** Length of the name as returned by {@link #name()}. */
+    public int nameLength() {
+        int nameEnd = trimEnd(0, 8);
+        int nameStart = trimStart(0, nameEnd);
+        int extEnd = trimEnd(8, 11);
+        int extStart = trimStart(8, extEnd);
+        int length = nameEnd - nameStart;
+        if (extEnd > extStart && printable(8, 11)) {
+            length += 1 + extEnd - extStart;
+        }
+        return length;
+    }
+
+    /**
+     * Compares against {@code name} ignoring case, without decoding the
+     * entry. Matches exactly the names that {@link #name()} would produce.
+     */
+    public boolean nameEquals(CharSequence name) {
+        int nameEnd = trimEnd(0, 8);
+        int nameStart = trimStart(0, nameEnd);
+        int i = 0;
+        for (int p = nameStart; p < nameEnd; p++, i++) {
+            if (i >= name.length() || upper(name.charAt(i)) != upper((char) (buffer.get(base + p) & 0xFF))) {
+                return false;
+            }
+        }
+        int extEnd = trimEnd(8, 11);
+        int extStart = trimStart(8, extEnd);
+        if (extEnd > extStart && printable(8, 11)) {
+            if (i >= name.length() || name.charAt(i) != '.') {
+                return false;
+            }
+            i++;
+            for (int p = extStart; p < extEnd; p++, i++) {
+                if (i >= name.length() || upper(name.charAt(i)) != upper((char) (buffer.get(base + p) & 0xFF))) {
+                    return false;
+                }
+            }
+        }
+        return i == name.length();
+    }
+
+    /** Upper-case "NAME.EXT" (or "NAME"), allocating one String. */
+    public String name() {
+        char[] chars = new char[nameLength()];
+        int i = 0;
+        int nameEnd = trimEnd(0, 8);
+        for (int p = trimStart(0, nameEnd); p < nameEnd; p++) {
+            chars[i++] = upper((char) buffer.get(base + p));
+        }
+        if (i < chars.length) {
+            chars[i++] = '.';
+            int extEnd = trimEnd(8, 11);
+            for (int p = trimStart(8, extEnd); p < extEnd; p++) {
+                chars[i++] = upper((char) buffer.get(base + p));
+            }
+        }
+        return new String(chars);
+    }
+
+    private boolean printable(int from, int to) {
+        int end = trimEnd(from, to);
+        for (int p = trimStart(from, end); p < end; p++) {
+            int b = buffer.get(base + p) & 0xFF;
+            if (b < 0x20 || b > 0x7E || b == '/' || b == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same bounds String.trim() uses: anything at or below a space is padding
+    private int trimStart(int from, int to) {
+        while (from < to && (buffer.get(base + from) & 0xFF) <= 0x20) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && (buffer.get(base + to - 1) & 0xFF) <= 0x20) {
+            to--;
+        }
+        return to;
+    }
+
+    private static char upper(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - 32) : c;
+    }
+}
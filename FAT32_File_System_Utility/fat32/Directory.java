@@ -0,0 +1,87 @@
+package fat32;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The visible entries of one directory, decoded once, with a name index
+ * so lookups are a hash hit instead of a scan. Entries can be found by
+ * their short name or their long name, ignoring case.
+ */
+public class Directory {
+
+    private final long cluster;
+    private final List<DirEntry> entries;
+    private final Map<String, DirEntry> byName;
+
+    public Directory(long cluster, List<DirEntry> entries) {
+        this.cluster = cluster;
+        this.entries = Collections.unmodifiableList(entries);
+        this.byName = new HashMap<>(entries.size() * 2);
+        for (DirEntry entry : entries) {
+            byName.putIfAbsent(entry.getName(), entry); // first match wins, as with a scan
+            if (entry.getLongName() != null) {
+                byName.putIfAbsent(entry.getLongName().toUpperCase(Locale.ROOT), entry);
+            }
+        }
+    }
+
+    /** Starting cluster of this directory. */
+    public long getCluster() {
+        return cluster;
+    }
+
+    /** Visible entries in on-disk order. */
+    public List<DirEntry> getEntries() {
+        return entries;
+    }
+
+    /** Case-insensitive lookup by name, or null if there is no such entry. */
+    public DirEntry find(String name) {
+        return byName.get(name.toUpperCase(Locale.ROOT));
+    }
+
+    /** Rough heap footprint, used by {@link DirectoryCache} to enforce its bound. */
+    public long estimatedBytes() {
+        long bytes = 128;
+        for (DirEntry entry : entries) {
+            bytes += 112 + 2L * entry.getName().length();
+            if (entry.getLongName() != null) {
+                bytes += 112 + 4L * entry.getLongName().length(); // the String plus its upper-case key
+            }
+        }
+        return bytes;
+    }
+
+    /** Decodes the directory stored in the cluster chain {@code extents}, which starts at {@code cluster}. */
+    public static Directory read(BlockDevice device, VolumeGeometry geometry, long cluster, ExtentList extents)
+            throws IOException {
+        DirectoryCursor cursor = new DirectoryCursor(device, geometry, extents);
+        DirEntryView view = new DirEntryView();
+        LongNameBuilder longName = new LongNameBuilder();
+        List<DirEntry> entries = new ArrayList<>();
+        long scanned = 0;
+        while (cursor.next()) {
+            scanned++;
+            view.wrap(cursor.buffer(), cursor.position());
+            if (view.isEnd()) break;
+            if (view.isDeleted()) {
+                longName.reset();
+            } else if (view.isLongName()) {
+                longName.add(view);
+            } else {
+                String name = longName.finish(view);
+                if (view.isVisible()) {
+                    entries.add(new DirEntry(view.name(), name, view.attributes(), view.firstCluster(), view.size()));
+                }
+            }
+        }
+        Metrics.add(Metrics.Counter.DIRECTORY_ENTRIES_SCANNED, scanned);
+        return new Directory(cluster, entries);
+    }
+}
@@ -0,0 +1,122 @@
+package fat32;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decoded directories keyed by starting cluster, evicted least recently
+ * used first once their estimated size passes the configured bound.
+ * Hits only touch a ConcurrentHashMap and a timestamp, so readers on many
+ * threads don't serialise on the cache; eviction takes a lock.
+ */
+public class DirectoryCache {
+
+    public interface Loader {
+        Directory load(long cluster) throws IOException;
+    }
+
+    private static class Node {
+        final Directory directory;
+        final long bytes;
+        volatile long lastUsed;
+
+        Node(Directory directory, long lastUsed) {
+            this.directory = directory;
+            this.bytes = directory.estimatedBytes();
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final Loader loader;
+    private final long maxBytes;
+    private final ConcurrentHashMap<Long, Node> directories = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DirectoryCache(Loader loader, long maxBytes) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+    }
+
+    public Directory get(long cluster) throws IOException {
+        Node node = directories.get(cluster);
+        if (node != null) {
+            hits.increment();
+            Metrics.increment(Metrics.Counter.DIRECTORY_CACHE_HITS);
+            node.lastUsed = clock.getAndIncrement();
+            return node.directory;
+        }
+        try {
+            node = directories.computeIfAbsent(cluster, key -> {
+                misses.increment();
+                Metrics.increment(Metrics.Counter.DIRECTORY_CACHE_MISSES);
+                try {
+                    Node loaded = new Node(loader.load(key), clock.getAndIncrement());
+                    usedBytes.addAndGet(loaded.bytes);
+                    return loaded;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (usedBytes.get() > maxBytes) {
+            evict(cluster);
+        }
+        return node.directory;
+    }
+
+    public void invalidate(long cluster) {
+        Node removed = directories.remove(cluster);
+        if (removed != null) {
+            usedBytes.addAndGet(-removed.bytes);
+        }
+    }
+
+    public synchronized void clear() {
+        for (Long cluster : new ArrayList<>(directories.keySet())) {
+            invalidate(cluster);
+        }
+    }
+
+    private synchronized void evict(long keep) {
+        if (usedBytes.get() <= maxBytes) {
+            return; // another thread got here first
+        }
+        List<Map.Entry<Long, Node>> byAge = new ArrayList<>(directories.entrySet());
+        byAge.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        for (Map.Entry<Long, Node> eldest : byAge) {
+            if (usedBytes.get() <= maxBytes) {
+                break;
+            }
+            if (eldest.getKey() == keep) {
+                continue; // never evict the directory we just loaded
+            }
+            if (directories.remove(eldest.getKey(), eldest.getValue())) {
+                usedBytes.addAndGet(-eldest.getValue().bytes);
+            }
+        }
+    }
+
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+}
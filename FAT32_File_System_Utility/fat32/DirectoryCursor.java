@@ -0,0 +1,85 @@
+package fat32;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the 32-byte entries of a directory, following its cluster chain.
+ * Each run of contiguous clusters is fetched in as few windows as possible
+ * and entries are read straight out of those buffers.
+ */
+public class DirectoryCursor {
+
+    public static final int ENTRY_SIZE = 32;
+    private static final int MAX_WINDOW = 1 << 20;
+
+    private final BlockDevice device;
+    private final ExtentList extents;
+    private final VolumeGeometry geometry;
+    private final long clusterBytes;
+    private int extent = -1;
+    private long extentPosition; // next byte to fetch within the current extent
+    private long extentLength;
+    private ByteBuffer window;
+    private int position;
+
+    /**
+     * @param extents the directory's cluster chain
+     */
+    public DirectoryCursor(BlockDevice device, VolumeGeometry geometry, ExtentList extents) {
+        this.device = device;
+        this.extents = extents;
+        this.geometry = geometry;
+        this.clusterBytes = geometry.getClusterBytes();
+    }
+
+    /** Advances to the next entry, returning false once the chain is exhausted. */
+    public boolean next() throws IOException {
+        position += ENTRY_SIZE;
+        while (window == null || position + ENTRY_SIZE > window.limit()) {
+            if (extentPosition >= extentLength) {
+                if (++extent >= extents.extentCount()) {
+                    return false;
+                }
+                extentPosition = 0;
+                extentLength = extents.length(extent) * clusterBytes;
+            }
+            long start = geometry.clusterOffset(extents.start(extent)) + extentPosition;
+            int length = (int) Math.min(MAX_WINDOW, extentLength - extentPosition);
+            window = device.view(start, length);
+            if (window.limit() < length) {
+                extentLength = extentPosition + window.limit(); // chain runs off the end of the image
+            }
+            extentPosition += length;
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Scans forward for a visible entry named {@code name} (ignoring case) and
+     * points {@code view} at it. Nothing is allocated beyond the cursor's windows.
+     */
+    public boolean find(CharSequence name, DirEntryView view) throws IOException {
+        while (next()) {
+            view.wrap(window, position);
+            if (view.isEnd()) {
+                return false;
+            }
+            if (view.isVisible() && view.nameEquals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Buffer holding the current entry. */
+    public ByteBuffer buffer() {
+        return window;
+    }
+
+    /** Index of the current entry within {@link #buffer()}. */
+    public int position() {
+        return position;
+    }
+}
@@ -0,0 +1,109 @@
+package fat32;
+
+import java.util.Arrays;
+
+/**
+ * A cluster chain collapsed into runs of physically consecutive clusters.
+ * Finding the cluster that holds a given file offset is a binary search over
+ * the runs rather than a walk down the chain.
+ */
+public class ExtentList {
+
+    public static final ExtentList EMPTY = new ExtentList(new int[0], new int[0], new long[0]);
+
+    private final int[] starts;    // first cluster of each run
+    private final int[] lengths;   // clusters in each run
+    private final long[] indexes;  // position of each run's first cluster within the chain
+
+    private ExtentList(int[] starts, int[] lengths, long[] indexes) {
+        this.starts = starts;
+        this.lengths = lengths;
+        this.indexes = indexes;
+    }
+
+    /** Rough heap size of the list, for cache accounting. */
+    public long estimatedBytes() {
+        return 64 + starts.length * 16L;
+    }
+
+    public int extentCount() {
+        return starts.length;
+    }
+
+    public int start(int extent) {
+        return starts[extent];
+    }
+
+    public int length(int extent) {
+        return lengths[extent];
+    }
+
+    /** Index of the extent's first cluster within the chain. */
+    public long chainIndex(int extent) {
+        return indexes[extent];
+    }
+
+    /** Total number of clusters in the chain. */
+    public long clusterCount() {
+        int last = starts.length - 1;
+        return last < 0 ? 0 : indexes[last] + lengths[last];
+    }
+
+    /** Extent holding the {@code clusterIndex}-th cluster of the chain, or -1 past the end. */
+    public int extentOf(long clusterIndex) {
+        if (clusterIndex < 0 || clusterIndex >= clusterCount()) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(indexes, clusterIndex);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /** The {@code clusterIndex}-th cluster of the chain, or -1 past the end. */
+    public long clusterAt(long clusterIndex) {
+        int extent = extentOf(clusterIndex);
+        return extent < 0 ? -1 : starts[extent] + (clusterIndex - indexes[extent]);
+    }
+
+    static class Builder {
+        private int[] starts = new int[4];
+        private int[] lengths = new int[4];
+        private long[] indexes = new long[4];
+        private int count;
+        private long total;
+
+        void add(int cluster) {
+            if (count > 0 && starts[count - 1] + lengths[count - 1] == cluster) {
+                lengths[count - 1]++;
+            } else {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                    indexes = Arrays.copyOf(indexes, count * 2);
+                }
+                starts[count] = cluster;
+                lengths[count] = 1;
+                indexes[count] = total;
+                count++;
+            }
+            total++;
+        }
+
+        // Appends a whole run, as stored by MetadataIndex
+        void addRun(int start, int length) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                indexes = Arrays.copyOf(indexes, count * 2);
+            }
+            starts[count] = start;
+            lengths[count] = length;
+            indexes[count] = total;
+            count++;
+            total += length;
+        }
+
+        ExtentList build() {
+            return new ExtentList(Arrays.copyOf(starts, count), Arrays.copyOf(lengths, count), Arrays.copyOf(indexes, count));
+        }
+    }
+}
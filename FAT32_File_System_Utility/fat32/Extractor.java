@@ -0,0 +1,97 @@
+package fat32;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copies a directory tree out of a volume into a host directory, one file
+ * per fork-join task. Copies go through a fixed queue of large direct
+ * buffers, so memory use is bounded by the pool size however big the
+ * files are.
+ */
+public class Extractor {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final Fat32Volume volume;
+    private final TreeWalker walker;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public Extractor(Fat32Volume volume, ForkJoinPool pool, int bufferSize) {
+        this.volume = volume;
+        this.walker = new TreeWalker(volume, pool);
+        // One per worker plus one for a submitting thread that helps out; a copy never holds two
+        int count = pool.getParallelism() + 1;
+        this.buffers = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            buffers.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    public Extractor(Fat32Volume volume) {
+        this(volume, ForkJoinPool.commonPool(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Files written so far. */
+    public long files() {
+        return files.sum();
+    }
+
+    /** Bytes written so far. */
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    /** Extracts everything below the directory {@code start} into {@code target}, creating it if needed. */
+    public void extract(PathResolver.Resolved start, Path target) throws IOException {
+        Files.createDirectories(target);
+        Path root = target.toAbsolutePath().normalize();
+        walker.walk(start, (path, entry) -> {
+            Path out = root.resolve(path.substring(start.getPath().equals("/") ? 1 : start.getPath().length() + 1)).normalize();
+            // Names come from the image; a crafted one must not land outside the target
+            if (!out.startsWith(root) || out.equals(root)) {
+                throw new IOException("Refusing to extract " + path + ", it would land outside " + target);
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(out);
+            } else {
+                copy(entry, out);
+            }
+        });
+    }
+
+    /** Copies one file's contents to {@code out}, replacing it if it exists. */
+    public void copy(DirEntry entry, Path out) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a copy buffer");
+        }
+        try (ClusterChainChannel in = volume.open(entry);
+             FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (in.read(buffer.clear()) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    bytes.add(channel.write(buffer));
+                }
+            }
+            files.increment();
+        } finally {
+            buffers.add(buffer);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package fat32;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the images of an {@link ImagePool} over a loopback socket, so one
+ * warm process answers queries that would each cost a JVM start and cold
+ * caches. The protocol is one request per line and one JSON object per
+ * response line, in request order:
+ * <pre>
+ *   IMAGE ls [PATH]
+ *   IMAGE stat PATH
+ *   IMAGE size PATH
+ *   IMAGE read PATH OFFSET NUM_BYTES     (data is base64)
+ *   images
+ * </pre>
+ * Paths are relative to the image's root. Every request runs on a thread
+ * of its own, so a client may pipeline requests and slow reads do not hold
+ * up the rest. On a JDK with virtual threads those threads are virtual;
+ * otherwise they come from a cached pool.
+ */
+public class Fat32Server implements Closeable {
+
+    public static final int MAX_IN_FLIGHT = 64;  // per connection, before the reader stops reading
+    public static final int MAX_READ_BYTES = 16 << 20;
+
+    private static final Future<Response> END = CompletableFuture.completedFuture(null);
+
+    // A response line and the memory it holds against the pool's budget until it is written
+    private static class Response {
+        final String line;
+        final long reservedBytes;
+
+        Response(String line, long reservedBytes) {
+            this.line = line;
+            this.reservedBytes = reservedBytes;
+        }
+
+        Response(String line) {
+            this(line, 0);
+        }
+    }
+
+    private final ImagePool pool;
+    private final ServerSocket socket;
+    private final ExecutorService executor = newRequestExecutor();
+
+    /** Listens on {@code port} of the loopback interface; 0 picks a free port. */
+    public Fat32Server(ImagePool pool, int port) throws IOException {
+        this.pool = pool;
+        this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /** Accepts connections until the server is closed. */
+    public void serve() throws IOException {
+        while (!socket.isClosed()) {
+            Socket connection;
+            try {
+                connection = socket.accept();
+            } catch (SocketException e) {
+                if (socket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            executor.execute(() -> connection(connection));
+        }
+    }
+
+    // Virtual threads arrived in JDK 21; look them up so this still runs on 17
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "fat32-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Reads requests and hands each to its own thread; a writer sends the answers back in order
+    private void connection(Socket connection) {
+        BlockingQueue<Future<Response>> pending = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+        try (connection;
+             BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+            Future<?> writer = executor.submit(() -> {
+                try {
+                    respond(pending, out);
+                } catch (IOException e) {
+                    connection.close(); // so a reader blocked on the socket gives up too
+                    throw e;
+                }
+                return null;
+            });
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String request = line;
+                    if (!request.isBlank()) {
+                        Future<Response> answer = executor.submit(() -> handle(request));
+                        if (!enqueue(pending, answer, writer)) {
+                            release(answer);
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The client went away, or the writer closed the socket; send what is already queued if we can
+            }
+            if (enqueue(pending, END, writer)) {
+                writer.get();
+            }
+        } catch (IOException | ExecutionException e) {
+            // The client went away; there is nobody left to tell
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Future<Response> next;
+            while ((next = pending.poll()) != null) {
+                release(next);
+            }
+        }
+    }
+
+    // Waits for room in the queue, unless the writer has stopped and nothing will take from it again
+    private static boolean enqueue(BlockingQueue<Future<Response>> pending, Future<Response> answer, Future<?> writer)
+            throws InterruptedException {
+        while (!writer.isDone()) {
+            if (pending.offer(answer, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Gives back the memory of an answer that will never be written
+    private void release(Future<Response> answer) {
+        try {
+            Response response = answer.get();
+            if (response != null) {
+                pool.unreserve(response.reservedBytes);
+            }
+        } catch (ExecutionException e) {
+            // handle() never throws
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(BlockingQueue<Future<Response>> pending, Writer out) throws IOException {
+        try {
+            while (true) {
+                Response response = pending.take().get();
+                if (response == null) {
+                    break;
+                }
+                try {
+                    out.write(response.line);
+                    out.write('\n');
+                } finally {
+                    pool.unreserve(response.reservedBytes);
+                }
+                if (pending.isEmpty()) {
+                    out.flush(); // pipelined answers go out together
+                }
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a response");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause()); // handle() turns failures into responses, so this is a bug
+        }
+    }
+
+    // Answers one request line
+    private Response handle(String request) {
+        String[] parts = request.trim().split(" ", 3);
+        if (parts[0].equals("images")) {
+            StringBuilder json = new StringBuilder("{\"ok\":true,\"images\":[");
+            String separator = "";
+            for (String name : pool.names()) {
+                json.append(separator).append(quote(name));
+                separator = ",";
+            }
+            return new Response(json.append("]}").toString());
+        }
+        if (parts.length < 2) {
+            return new Response(error("Usage: IMAGE ls|stat|size|read [ARGUMENTS]"));
+        }
+        String command = parts[1];
+        String argument = parts.length > 2 ? parts[2].trim() : "";
+        long started = Metrics.start();
+        try (ImagePool.Lease lease = pool.acquire(parts[0])) {
+            Fat32Volume volume = lease.getVolume();
+            Response response;
+            switch (command) {
+                case "ls":
+                    response = new Response(ls(volume, argument));
+                    break;
+                case "stat":
+                    response = new Response(stat(volume, argument));
+                    break;
+                case "size":
+                    response = new Response(size(volume, argument));
+                    break;
+                case "read":
+                    response = read(volume, argument);
+                    break;
+                default:
+                    return new Response(error("Unknown command " + command));
+            }
+            Metrics.recordCommand(command, started);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            return new Response(error(e.getMessage() == null ? e.toString() : e.getMessage()));
+        }
+    }
+
+    private static String ls(Fat32Volume volume, String path) throws IOException {
+        PathResolver.Resolved resolved = resolve(volume, path.isEmpty() ? "/" : path);
+        if (resolved == null || !resolved.isDirectory()) {
+            return error(path + " is not a directory");
+        }
+        StringBuilder json = new StringBuilder("{\"ok\":true,\"entries\":[");
+        String separator = "";
+        for (DirEntry entry : volume.directory(resolved.getCluster()).getEntries()) {
+            json.append(separator).append("{\"name\":").append(quote(entry.getDisplayName()))
+                    .append(",\"directory\":").append(entry.isDirectory())
+                    .append(",\"size\":").append(entry.getSize()).append('}');
+            separator = ",";
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String stat(Fat32Volume volume, String path) throws IOException {
+        PathResolver.Resolved resolved = resolve(volume, path);
+        if (resolved == null || resolved.getEntry() == null) {
+            return error("file/directory does not exist");
+        }
+        DirEntry entry = resolved.getEntry();
+        return "{\"ok\":true,\"name\":" + quote(entry.getDisplayName()) + ",\"size\":" + entry.getSize()
+                + ",\"attributes\":" + entry.getAttributes() + ",\"directory\":" + entry.isDirectory()
+                + ",\"cluster\":" + entry.getFirstCluster() + "}";
+    }
+
+    private static String size(Fat32Volume volume, String path) throws IOException {
+        PathResolver.Resolved resolved = resolve(volume, path);
+        if (resolved == null || resolved.isDirectory()) {
+            return error(path + " is not a file");
+        }
+        return "{\"ok\":true,\"size\":" + resolved.getEntry().getSize() + "}";
+    }
+
+    // OFFSET and NUM_BYTES are the last two words, as in the interactive read
+    private Response read(Fat32Volume volume, String argument) throws IOException {
+        int numBytesStart = argument.lastIndexOf(' ');
+        int offsetStart = numBytesStart < 0 ? -1 : argument.substring(0, numBytesStart).trim().lastIndexOf(' ');
+        if (offsetStart < 0) {
+            return new Response(error("Usage: IMAGE read PATH OFFSET NUM_BYTES"));
+        }
+        String path = argument.substring(0, offsetStart).trim();
+        long offset;
+        long numBytes;
+        try {
+            offset = Long.parseLong(argument.substring(offsetStart, numBytesStart).trim());
+            numBytes = Long.parseLong(argument.substring(numBytesStart).trim());
+        } catch (NumberFormatException e) {
+            return new Response(error("OFFSET and NUM_BYTES must be numbers"));
+        }
+        if (offset < 0 || numBytes < 1 || numBytes > MAX_READ_BYTES) {
+            return new Response(error("OFFSET must be positive and NUM_BYTES between 1 and " + MAX_READ_BYTES));
+        }
+        PathResolver.Resolved resolved = resolve(volume, path);
+        if (resolved == null || resolved.isDirectory()) {
+            return new Response(error(path + " is not a file"));
+        }
+        if (offset > resolved.getEntry().getSize() - numBytes) { // offset + numBytes could overflow
+            return new Response(error("attempt to read data outside of file bounds"));
+        }
+        // The data, then the base64 bytes, their string and the response line, each about 4/3 the data
+        long reserved = numBytes * 5;
+        pool.reserve(reserved);
+        try {
+            ByteBuffer data = ByteBuffer.allocate((int) numBytes);
+            try (ClusterChainChannel channel = volume.open(resolved.getEntry())) {
+                while (data.hasRemaining() && channel.read(data, offset + data.position()) > 0) {
+                    // positional reads, the channel is private to this request anyway
+                }
+            }
+            String line = "{\"ok\":true,\"data\":\"" + Base64.getEncoder().encodeToString(data.flip().array()) + "\"}";
+            return new Response(line, reserved);
+        } catch (IOException | RuntimeException e) {
+            pool.unreserve(reserved);
+            throw e;
+        }
+    }
+
+    private static PathResolver.Resolved resolve(Fat32Volume volume, String path) throws IOException {
+        return volume.getResolver().resolve("/", path);
+    }
+
+    private static String error(String message) {
+        return "{\"ok\":false,\"error\":" + quote(message) + "}";
+    }
+
+    private static String quote(String text) {
+        StringBuilder json = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,111 @@
+package fat32;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * One client's view of a {@link Fat32Volume}: just a working directory.
+ * Sessions are cheap and are not meant to be shared between threads;
+ * give each thread its own.
+ */
+public class Fat32Session {
+
+    private final Fat32Volume volume;
+    private PathResolver.Resolved cwd;
+
+    Fat32Session(Fat32Volume volume) {
+        this.volume = volume;
+        this.cwd = volume.getResolver().root();
+    }
+
+    public Fat32Volume getVolume() {
+        return volume;
+    }
+
+    /** Absolute path of the working directory. */
+    public String getPath() {
+        return cwd.getPath();
+    }
+
+    /** Starting cluster of the working directory. */
+    public long getCluster() {
+        return cwd.getCluster();
+    }
+
+    /** Resolves {@code path} against the working directory, or returns null if it does not exist. */
+    public PathResolver.Resolved resolve(String path) throws IOException {
+        return volume.getResolver().resolve(cwd.getPath(), path);
+    }
+
+    /** The working directory's entries. */
+    public Directory list() throws IOException {
+        return volume.directory(cwd.getCluster());
+    }
+
+    /** Changes directory, returning false if {@code path} is not a directory. */
+    public boolean cd(String path) throws IOException {
+        PathResolver.Resolved resolved = resolve(path);
+        if (resolved == null || !resolved.isDirectory()) {
+            return false;
+        }
+        cwd = resolved;
+        return true;
+    }
+
+    /** Opens the file at {@code path} for reading. */
+    public ClusterChainChannel open(String path) throws IOException {
+        PathResolver.Resolved resolved = resolve(path);
+        if (resolved == null || resolved.isDirectory()) {
+            throw new FileNotFoundException(path + " is not a file");
+        }
+        return volume.open(resolved.getEntry());
+    }
+
+    /** Creates the directory at {@code path}. */
+    public DirEntry mkdir(String path) throws IOException {
+        return writer().create(parent(path), name(path), true);
+    }
+
+    /** Creates an empty file at {@code path}. */
+    public DirEntry create(String path) throws IOException {
+        return writer().create(parent(path), name(path), false);
+    }
+
+    /** Creates an empty file at {@code path} unless something of that name is already there. */
+    public DirEntry touch(String path) throws IOException {
+        return writer().touch(parent(path), name(path));
+    }
+
+    /** Replaces or appends to the contents of the file at {@code path}, creating it if needed. Returns the new size. */
+    public long write(String path, InputStream in, boolean append) throws IOException {
+        return writer().write(parent(path), name(path), in, append);
+    }
+
+    /** Deletes the file or empty directory at {@code path}. */
+    public void delete(String path) throws IOException {
+        writer().delete(parent(path), name(path));
+    }
+
+    private Fat32Writer writer() throws IOException {
+        if (volume.getWriter() == null) {
+            throw new IOException("The image is open read-only");
+        }
+        return volume.getWriter();
+    }
+
+    // Directory holding the last component of `path`
+    private PathResolver.Resolved parent(String path) throws IOException {
+        int slash = path.lastIndexOf('/');
+        String parent = slash < 0 ? "." : slash == 0 ? "/" : path.substring(0, slash);
+        PathResolver.Resolved resolved = resolve(parent);
+        if (resolved == null || !resolved.isDirectory()) {
+            throw new FileNotFoundException(parent + " is not a directory");
+        }
+        return resolved;
+    }
+
+    private static String name(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
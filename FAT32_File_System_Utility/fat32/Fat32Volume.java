@@ -0,0 +1,216 @@
+package fat32;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An open FAT32 image: geometry, FAT and directory caches. Everything here
+ * is either immutable or thread-safe, so a read-only volume can serve any
+ * number of {@link Fat32Session}s concurrently. A writable one is only safe
+ * to read concurrently between writes, see {@link Fat32Writer}.
+ */
+public class Fat32Volume implements Closeable {
+
+    public static final long DEFAULT_DIR_CACHE_BYTES = 16L << 20;
+    public static final int READ_AHEAD_THREADS = 4;
+
+    private final BlockDevice device;
+    private final VolumeGeometry geometry;
+    private final FatTable fat;
+    private final DirectoryCache directories;
+    private final MetadataIndex index;
+    private final PathResolver resolver;
+    private final Fat32Writer writer;
+    private ExecutorService readAhead; // started on first sequential open
+
+    public Fat32Volume(BlockDevice device, long dirCacheBytes) throws IOException {
+        this(device, dirCacheBytes, null);
+    }
+
+    /**
+     * With an {@code indexFile}, paths are resolved from that sidecar index,
+     * which is built on the spot if it is missing or stale.
+     */
+    public Fat32Volume(BlockDevice device, long dirCacheBytes, Path indexFile) throws IOException {
+        this.device = device;
+        this.geometry = VolumeGeometry.read(device);
+        // Extent lists share the directory cache's budget
+        this.fat = FatTable.load(device, geometry, dirCacheBytes / 4);
+        this.directories = new DirectoryCache(this::readDirectory, dirCacheBytes - dirCacheBytes / 4);
+        this.index = indexFile == null ? null : MetadataIndex.openOrBuild(indexFile, this);
+        this.resolver = new PathResolver(directories, geometry.getRootCluster(), PathResolver.DEFAULT_MAX_PATHS, index);
+        this.writer = device instanceof JournaledBlockDevice ? new Fat32Writer(this, (JournaledBlockDevice) device) : null;
+    }
+
+    public static Fat32Volume open(String path, BlockDevice.Mode mode, long dirCacheBytes) throws IOException {
+        return open(path, mode, dirCacheBytes, null);
+    }
+
+    public static Fat32Volume open(String path, BlockDevice.Mode mode, long dirCacheBytes, Path indexFile)
+            throws IOException {
+        return open(path, mode, dirCacheBytes, CompressedBlockDevice.DEFAULT_CACHE_BYTES, indexFile);
+    }
+
+    /**
+     * As above, with a chunk cache of {@code deviceCacheBytes} if the image
+     * is a compressed container. Refuses an image whose last commit is still
+     * in its journal, since reading it would miss that commit; a writable
+     * open replays it.
+     */
+    public static Fat32Volume open(String path, BlockDevice.Mode mode, long dirCacheBytes, long deviceCacheBytes,
+            Path indexFile) throws IOException {
+        Path journal = JournaledBlockDevice.journalFor(Path.of(path));
+        if (JournaledBlockDevice.isPending(journal)) {
+            throw new IOException(path + " has an unfinished commit in " + journal
+                    + ", open it writable (--write) to replay it");
+        }
+        BlockDevice device = BlockDevice.open(path, mode, deviceCacheBytes);
+        try {
+            return new Fat32Volume(device, dirCacheBytes, indexFile);
+        } catch (IOException | RuntimeException e) {
+            device.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the image for reading and writing. Reads still go through
+     * {@code mode}; a journal left by an interrupted commit is replayed
+     * first. The journal lives at {@code <image>.journal}.
+     */
+    public static Fat32Volume openWritable(String path, BlockDevice.Mode mode, long dirCacheBytes) throws IOException {
+        if (CompressedBlockDevice.isContainer(Path.of(path))) {
+            throw new IOException("Compressed images are read-only");
+        }
+        FileChannel writes = FileChannel.open(Path.of(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        BlockDevice device = null;
+        try {
+            Path journal = JournaledBlockDevice.journalFor(Path.of(path));
+            JournaledBlockDevice.recover(writes, journal);
+            device = new JournaledBlockDevice(BlockDevice.open(path, mode), writes, journal);
+            return new Fat32Volume(device, dirCacheBytes);
+        } catch (IOException | RuntimeException e) {
+            if (device != null) {
+                device.close();
+            } else {
+                writes.close();
+            }
+            throw e;
+        }
+    }
+
+    public static Fat32Volume open(String path) throws IOException {
+        return open(path, BlockDevice.Mode.MMAP, DEFAULT_DIR_CACHE_BYTES);
+    }
+
+    public Fat32Session newSession() {
+        return new Fat32Session(this);
+    }
+
+    public BlockDevice getDevice() {
+        return device;
+    }
+
+    public VolumeGeometry getGeometry() {
+        return geometry;
+    }
+
+    public FatTable getFat() {
+        return fat;
+    }
+
+    public DirectoryCache getDirectories() {
+        return directories;
+    }
+
+    /** The sidecar index paths are resolved from, or null if there is none. */
+    public MetadataIndex getIndex() {
+        return index;
+    }
+
+    public PathResolver getResolver() {
+        return resolver;
+    }
+
+    /** The writer for this volume, or null if it was opened read-only. */
+    public Fat32Writer getWriter() {
+        return writer;
+    }
+
+    /**
+     * Estimated heap held by the volume: the FAT and every cache built on
+     * top of it, including the device's own.
+     */
+    public long cachedBytes() {
+        return fat.size() * 4L + fat.cachedExtentBytes() + directories.usedBytes() + resolver.estimatedBytes()
+                + device.cachedBytes();
+    }
+
+    /**
+     * Drops every cache that is rebuilt on demand, leaving only the FAT.
+     * Safe while other threads use the volume; they just miss.
+     */
+    public void clearCaches() {
+        resolver.clear();
+        directories.clear();
+        fat.clearExtents();
+        device.clearCache();
+    }
+
+    /** Decoded directory starting at {@code cluster}; 0 (as stored in "..") means the root. */
+    public Directory directory(long cluster) throws IOException {
+        return directories.get(cluster == 0 ? geometry.getRootCluster() : cluster);
+    }
+
+    /** A new channel over the contents of {@code entry}, positioned at 0. */
+    public ClusterChainChannel open(DirEntry entry) {
+        return new ClusterChainChannel(device, geometry, fat.extents(entry.getFirstCluster()), entry.getSize());
+    }
+
+    /**
+     * Like {@link #open(DirEntry)}, but with read-ahead once the caller
+     * reads sequentially. Meant for streaming whole files or large ranges.
+     * Mapped images skip it, the kernel already reads ahead on page faults.
+     */
+    public ReadAheadChannel openSequential(DirEntry entry) {
+        return new ReadAheadChannel(open(entry), device.isMapped() ? null : readAheadExecutor());
+    }
+
+    private synchronized ExecutorService readAheadExecutor() {
+        if (readAhead == null) {
+            readAhead = Executors.newFixedThreadPool(READ_AHEAD_THREADS, task -> {
+                Thread thread = new Thread(task, "fat32-read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return readAhead;
+    }
+
+    /** Decodes a directory without going through the cache, for one-off passes over the whole tree. */
+    Directory readDirectory(long cluster) throws IOException {
+        // Follow the directory's own cluster chain rather than reading past its first cluster
+        return Directory.read(device, geometry, cluster, fat.extents(cluster));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (readAhead != null) {
+                readAhead.shutdownNow();
+            }
+        }
+        try {
+            if (writer != null) {
+                writer.commit();
+            }
+        } finally {
+            device.close();
+        }
+    }
+}
@@ -0,0 +1,714 @@
+package fat32;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Create, write, append, delete and mkdir on a volume opened for writing.
+ * <p>
+ * Clusters come from an in-memory free bitmap, preferring one contiguous
+ * run per request. FAT changes go to the in-memory table at once and mark
+ * their sectors dirty; directory changes are staged in the device's
+ * write-back cache. On {@link #commit} the dirty FAT sectors are written
+ * to every FAT copy and everything goes to disk through the device's
+ * intent log. Clusters freed in a batch are only reused after it commits,
+ * so new data never lands in clusters the on-disk metadata still points at.
+ * <p>
+ * Each directory a batch touches is scanned once into a {@link Listing} of
+ * its names and free entries, which later operations in the batch update
+ * in place instead of rescanning.
+ * <p>
+ * Operations are serialised on the writer, but the FAT they change is a
+ * plain array, so nothing publishes a change to readers on other threads.
+ * Reads must not overlap an operation, and a reader on another thread must
+ * first synchronize on the writer, e.g. through {@link #freeClusters}.
+ */
+public class Fat32Writer {
+
+    /** Staged metadata that triggers a commit on its own. */
+    public static final long AUTO_COMMIT_BYTES = 16L << 20;
+
+    private static final long MAX_FILE_SIZE = 0xFFFFFFFFL;
+    private static final int COPY_BUFFER = 1 << 20;
+    private static final int END_OF_CHAIN = 0x0FFFFFFF;
+    private static final int FSINFO_LEAD_SIGNATURE = 0x41615252;
+    private static final int[] LFN_CHAR_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+    private static final String SHORT_NAME_CHARS = "$%'-_@~`!(){}^#&";
+
+    /** Where an entry lives: the index of its short entry and of the long name entries before it. */
+    private static class Slot {
+        final int index;
+        final int[] longName;
+        final String shortName; // the raw 11 bytes
+        final DirEntry entry;
+
+        Slot(int index, int[] longName, String shortName, DirEntry entry) {
+            this.index = index;
+            this.longName = longName;
+            this.shortName = shortName;
+            this.entry = entry;
+        }
+
+        Slot with(DirEntry changed) {
+            return new Slot(index, longName, shortName, changed);
+        }
+    }
+
+    /**
+     * One directory as the current batch sees it. Every live entry counts,
+     * hidden and system ones included, so a new name never shadows or
+     * collides with one the listing does not show.
+     */
+    private class Listing {
+        ExtentList chain;
+        int entries;                                        // entry slots in the chain
+        int end;                                            // index of the end marker, or entries
+        final Map<String, Slot> byName = new HashMap<>();   // upper-case long and short names
+        final Set<String> shortNames = new HashSet<>();     // raw 11-byte names, dots and labels too
+        final BitSet free = new BitSet();
+
+        long offset(int index) {
+            int perCluster = clusterBytes / DirectoryCursor.ENTRY_SIZE;
+            return geometry.clusterOffset(chain.clusterAt(index / perCluster))
+                    + (long) (index % perCluster) * DirectoryCursor.ENTRY_SIZE;
+        }
+
+        Slot find(String name) {
+            return byName.get(name.toUpperCase(Locale.ROOT));
+        }
+
+        void add(Slot slot) {
+            shortNames.add(slot.shortName);
+            free.clear(slot.index - slot.longName.length, slot.index + 1);
+            if ((slot.entry.getAttributes() & DirEntry.ATTR_VOLUME_ID) == 0) {
+                byName.putIfAbsent(slot.entry.getName().toUpperCase(Locale.ROOT), slot);
+                if (slot.entry.getLongName() != null) {
+                    byName.putIfAbsent(slot.entry.getLongName().toUpperCase(Locale.ROOT), slot);
+                }
+            }
+        }
+
+        void remove(Slot slot) {
+            shortNames.remove(slot.shortName);
+            free.set(slot.index - slot.longName.length, slot.index + 1);
+            byName.remove(slot.entry.getName().toUpperCase(Locale.ROOT), slot);
+            if (slot.entry.getLongName() != null) {
+                byName.remove(slot.entry.getLongName().toUpperCase(Locale.ROOT), slot);
+            }
+        }
+
+        void replace(Slot slot, Slot changed) {
+            byName.replace(slot.entry.getName().toUpperCase(Locale.ROOT), slot, changed);
+            if (slot.entry.getLongName() != null) {
+                byName.replace(slot.entry.getLongName().toUpperCase(Locale.ROOT), slot, changed);
+            }
+        }
+    }
+
+    private final Fat32Volume volume;
+    private final JournaledBlockDevice device;
+    private final VolumeGeometry geometry;
+    private final FatTable fat;
+    private final int clusterBytes;
+    private final BitSet free = new BitSet();       // clusters that may be allocated now
+    private final BitSet released = new BitSet();   // freed in this batch, allocatable after commit
+    private final BitSet dirtyFatSectors = new BitSet();
+    private final Map<Long, Listing> listings = new HashMap<>(); // directories touched by this batch
+    private long available;
+    private long nextFree;
+
+    Fat32Writer(Fat32Volume volume, JournaledBlockDevice device) {
+        this.volume = volume;
+        this.device = device;
+        this.geometry = volume.getGeometry();
+        this.fat = volume.getFat();
+        this.clusterBytes = (int) geometry.getClusterBytes();
+        for (int cluster = 2; cluster < fat.size(); cluster++) {
+            if (fat.get(cluster) == 0) {
+                free.set(cluster);
+            }
+        }
+        available = free.cardinality();
+        long hint = geometry.getFsInfoNextFree();
+        nextFree = hint >= 2 && hint < fat.size() ? hint : 2;
+    }
+
+    /** Creates an empty file or directory called {@code name} in {@code parent}. */
+    public synchronized DirEntry create(PathResolver.Resolved parent, String name, boolean directory) throws IOException {
+        return add(parent.getCluster(), name, directory).entry;
+    }
+
+    /** The entry called {@code name} in {@code parent}, hidden or not, creating an empty file if there is none. */
+    public synchronized DirEntry touch(PathResolver.Resolved parent, String name) throws IOException {
+        Slot slot = listing(parent.getCluster()).find(name);
+        return slot != null ? slot.entry : add(parent.getCluster(), name, false).entry;
+    }
+
+    private Slot add(long parentCluster, String name, boolean directory) throws IOException {
+        checkName(name);
+        Listing listing = listing(parentCluster);
+        if (listing.find(name) != null) {
+            throw new IOException(name + " already exists");
+        }
+        byte[] shortName = shortName(name, listing.shortNames);
+        String shortString = displayShortName(shortName);
+        String longName = shortString.equals(name) ? null : name;
+        int longEntries = longName == null ? 0 : (longName.length() + 12) / 13;
+        int first = allocateSlots(parentCluster, listing, longEntries + 1);
+
+        long cluster = 0;
+        int attributes = directory ? DirEntry.ATTR_DIRECTORY : DirEntry.ATTR_ARCHIVE;
+        if (directory) {
+            cluster = allocate(1, nextFree)[0];
+            setFat(cluster, END_OF_CHAIN);
+            // A fresh directory holds only "." and ".."; ".." is 0 when the parent is the root
+            ByteBuffer contents = ByteBuffer.allocate(clusterBytes).order(ByteOrder.LITTLE_ENDIAN);
+            putShortEntry(contents, 0, dotName("."), DirEntry.ATTR_DIRECTORY, cluster, 0);
+            long dotDot = parentCluster == geometry.getRootCluster() ? 0 : parentCluster;
+            putShortEntry(contents, 32, dotName(".."), DirEntry.ATTR_DIRECTORY, dotDot, 0);
+            device.writeThrough(geometry.clusterOffset(cluster), contents);
+        }
+        writeEntry(listing, first, longEntries, shortName, longName, attributes, cluster, 0);
+        int[] longSlots = new int[longEntries];
+        for (int k = 0; k < longEntries; k++) {
+            longSlots[k] = first + k;
+        }
+        Slot slot = new Slot(first + longEntries, longSlots, new String(shortName, StandardCharsets.ISO_8859_1),
+                new DirEntry(shortString, longName, attributes, cluster, 0));
+        listing.add(slot);
+        changed(parentCluster);
+        autoCommit();
+        return slot;
+    }
+
+    /**
+     * Writes {@code in} to the file {@code name} in {@code parent}, creating
+     * it if needed. Replaces the contents unless {@code append} is set.
+     * Returns the new size. If it fails part-way, e.g. when the volume
+     * fills up, the file is left as it was and its new clusters are freed.
+     */
+    public synchronized long write(PathResolver.Resolved parent, String name, InputStream in, boolean append)
+            throws IOException {
+        long parentCluster = parent.getCluster();
+        Listing listing = listing(parentCluster);
+        Slot slot = listing.find(name);
+        boolean created = slot == null;
+        if (created) {
+            slot = add(parentCluster, name, false);
+        }
+        if (slot.entry.isDirectory()) {
+            throw new IOException(name + " is a directory");
+        }
+
+        // A rewrite goes to a new chain and the old one is freed afterwards, so a crash keeps the old contents.
+        // An append goes past the committed size, where nothing is visible until the new size commits.
+        long oldFirst = append ? 0 : slot.entry.getFirstCluster();
+        long first = append ? slot.entry.getFirstCluster() : 0;
+        long size = append ? slot.entry.getSize() : 0;
+        ExtentList.Builder builder = new ExtentList.Builder();
+        ExtentList chain = fat.chain(first);
+        for (int i = 0; i < chain.extentCount(); i++) {
+            builder.addRun(chain.start(i), chain.length(i));
+        }
+        long tail = chain.clusterCount() == 0 ? 0 : chain.clusterAt(chain.clusterCount() - 1);
+        long oldTail = tail;
+        long oldNextFree = nextFree;
+
+        BitSet allocated = new BitSet();
+        byte[] bytes = new byte[COPY_BUFFER];
+        int n;
+        try {
+            while ((n = in.readNBytes(bytes, 0, bytes.length)) > 0) {
+                if (size + n > MAX_FILE_SIZE) {
+                    throw new IOException(name + " would be larger than FAT32 allows");
+                }
+                long needed = (size + n + clusterBytes - 1) / clusterBytes - chain.clusterCount();
+                if (needed > 0) {
+                    int[] clusters = allocate((int) needed, tail >= 2 ? tail + 1 : nextFree);
+                    for (int i = 0; i < clusters.length; i++) {
+                        allocated.set(clusters[i]);
+                        setFat(clusters[i], i + 1 < clusters.length ? clusters[i + 1] : END_OF_CHAIN);
+                        builder.add(clusters[i]);
+                    }
+                    if (tail >= 2) {
+                        setFat(tail, clusters[0]);
+                    } else {
+                        first = clusters[0];
+                    }
+                    tail = clusters[clusters.length - 1];
+                    chain = builder.build();
+                }
+                writeData(chain, size, ByteBuffer.wrap(bytes, 0, n));
+                size += n;
+            }
+        } catch (IOException | RuntimeException e) {
+            abandon(allocated, oldTail, first);
+            nextFree = oldNextFree;
+            if (created) {
+                erase(listing, slot);
+                changed(parentCluster);
+            }
+            throw e;
+        }
+
+        ByteBuffer fields = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        fields.putShort(0, (short) (first >>> 16));
+        int[] now = dosNow();
+        fields.putShort(2, (short) now[1]).putShort(4, (short) now[2]).putShort(6, (short) first);
+        fields.putInt(8, (int) size);
+        device.write(listing.offset(slot.index) + 20, fields);
+        DirEntry entry = slot.entry;
+        listing.replace(slot, slot.with(new DirEntry(entry.getName(), entry.getLongName(), entry.getAttributes(), first, size)));
+        if (oldFirst >= 2) {
+            release(oldFirst);
+        }
+        fat.invalidate(first);
+        changed(parentCluster);
+        autoCommit();
+        return size;
+    }
+
+    /** Deletes the file or empty directory {@code name} in {@code parent}. */
+    public synchronized void delete(PathResolver.Resolved parent, String name) throws IOException {
+        checkName(name);
+        long parentCluster = parent.getCluster();
+        Listing listing = listing(parentCluster);
+        Slot slot = listing.find(name);
+        if (slot == null) {
+            throw new FileNotFoundException(name + " does not exist");
+        }
+        long first = slot.entry.getFirstCluster();
+        if (slot.entry.isDirectory() && !isEmptyDirectory(first)) {
+            throw new IOException(name + " is not empty");
+        }
+        erase(listing, slot);
+        if (first >= 2) {
+            release(first);
+            listings.remove(first);
+            volume.getDirectories().invalidate(first);
+        }
+        changed(parentCluster);
+        autoCommit();
+    }
+
+    // Marks the entry and its long name entries deleted
+    private void erase(Listing listing, Slot slot) throws IOException {
+        ByteBuffer deleted = ByteBuffer.wrap(new byte[] {(byte) 0xE5});
+        for (int index : slot.longName) {
+            device.write(listing.offset(index), deleted.rewind());
+        }
+        device.write(listing.offset(slot.index), deleted.rewind());
+        listing.remove(slot);
+    }
+
+    /** Writes the FAT and FSInfo and makes the batch durable. Does nothing if nothing changed. */
+    public synchronized void commit() throws IOException {
+        flushFat();
+        device.commit();
+        listings.clear(); // only kept for a batch, so memory stays bounded
+        free.or(released);
+        available += released.cardinality();
+        released.clear();
+    }
+
+    /** Free clusters, counting those released by the current batch. */
+    public synchronized long freeClusters() {
+        return available + released.cardinality();
+    }
+
+    private void autoCommit() throws IOException {
+        if (device.stagedBytes() >= AUTO_COMMIT_BYTES) {
+            commit();
+        }
+    }
+
+    // Caches that may hold the old state of the directory
+    private void changed(long directoryCluster) {
+        fat.invalidate(directoryCluster);
+        volume.getDirectories().invalidate(directoryCluster);
+        volume.getResolver().clear();
+    }
+
+    // ---- clusters and the FAT ----
+
+    /** {@code count} free clusters, one contiguous run at or after {@code hint} if there is one. */
+    private int[] allocate(int count, long hint) throws IOException {
+        if (count > available) {
+            throw new IOException("No space left on the volume");
+        }
+        int start = findRun(count, (int) hint, fat.size());
+        if (start < 0) {
+            start = findRun(count, 2, (int) hint);
+        }
+        int[] clusters = new int[count];
+        if (start >= 0) {
+            for (int i = 0; i < count; i++) {
+                clusters[i] = start + i;
+            }
+        } else {
+            // Too fragmented for one run, take free clusters in order from the hint
+            int cluster = (int) hint;
+            for (int i = 0; i < count; i++) {
+                cluster = free.nextSetBit(cluster);
+                if (cluster < 0) {
+                    cluster = free.nextSetBit(2);
+                }
+                clusters[i] = cluster++;
+            }
+        }
+        for (int cluster : clusters) {
+            free.clear(cluster);
+        }
+        available -= count;
+        nextFree = clusters[count - 1] + 1L;
+        return clusters;
+    }
+
+    private int findRun(int count, int from, int to) {
+        int start = free.nextSetBit(Math.max(from, 2));
+        while (start >= 0 && start < to) {
+            int end = free.nextClearBit(start);
+            if (end - start >= count) {
+                return start;
+            }
+            start = free.nextSetBit(end);
+        }
+        return -1;
+    }
+
+    // Undoes a failed write: its clusters were never committed, so they are free again at once
+    private void abandon(BitSet allocated, long oldTail, long first) {
+        for (int cluster = allocated.nextSetBit(0); cluster >= 0; cluster = allocated.nextSetBit(cluster + 1)) {
+            setFat(cluster, 0);
+            free.set(cluster);
+            available++;
+        }
+        if (oldTail >= 2) {
+            setFat(oldTail, END_OF_CHAIN);
+        }
+        fat.invalidate(first);
+    }
+
+    private void release(long first) {
+        long cluster = first;
+        for (int hops = 0; hops < fat.size() && cluster >= 2; hops++) {
+            long next = fat.next(cluster);
+            setFat(cluster, 0);
+            released.set((int) cluster);
+            cluster = next;
+        }
+        fat.invalidate(first);
+    }
+
+    private void setFat(long cluster, int value) {
+        fat.set(cluster, value);
+        dirtyFatSectors.set((int) (cluster * 4 / geometry.getBytesPerSector()));
+    }
+
+    // Dirty FAT sectors go to every copy; the device coalesces neighbouring sectors into one write
+    private void flushFat() throws IOException {
+        int bytesPerSector = geometry.getBytesPerSector();
+        int perSector = bytesPerSector / 4;
+        ByteBuffer sector = ByteBuffer.allocate(bytesPerSector).order(ByteOrder.LITTLE_ENDIAN);
+        for (int s = dirtyFatSectors.nextSetBit(0); s >= 0; s = dirtyFatSectors.nextSetBit(s + 1)) {
+            long offset = geometry.getFatOffset() + (long) s * bytesPerSector;
+            device.read(offset, sector.clear());
+            for (int i = 0; i < perSector && (long) s * perSector + i < fat.size(); i++) {
+                // The top four bits are reserved and kept as they are on disk
+                int old = sector.getInt(i * 4);
+                sector.putInt(i * 4, (old & ~FatTable.ENTRY_MASK) | fat.get((long) s * perSector + i));
+            }
+            for (int copy = 0; copy < geometry.getNumberOfFats(); copy++) {
+                device.write(offset + copy * geometry.getFatBytes(), sector.clear());
+            }
+        }
+        if (!dirtyFatSectors.isEmpty()) {
+            writeFsInfo();
+        }
+        dirtyFatSectors.clear();
+    }
+
+    private void writeFsInfo() throws IOException {
+        int sector = geometry.getFsInfoSector();
+        if (sector == 0 || sector == 0xFFFF) {
+            return;
+        }
+        long offset = (long) sector * geometry.getBytesPerSector();
+        ByteBuffer lead = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        device.read(offset, lead);
+        if (lead.getInt(0) != FSINFO_LEAD_SIGNATURE) {
+            return;
+        }
+        ByteBuffer counts = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        counts.putInt(0, (int) freeClusters()).putInt(4, nextFree < fat.size() ? (int) nextFree : -1);
+        device.write(offset + 488, counts);
+    }
+
+    // ---- file data ----
+
+    private void writeData(ExtentList chain, long position, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            int extent = chain.extentOf(position / clusterBytes);
+            long extentStart = chain.chainIndex(extent) * clusterBytes;
+            long extentEnd = extentStart + (long) chain.length(extent) * clusterBytes;
+            int n = (int) Math.min(data.remaining(), extentEnd - position);
+            long diskOffset = geometry.clusterOffset(chain.start(extent)) + (position - extentStart);
+            device.writeThrough(diskOffset, data.slice(data.position(), n));
+            data.position(data.position() + n);
+            position += n;
+        }
+    }
+
+    // ---- directories ----
+
+    private Listing listing(long directory) throws IOException {
+        Listing listing = listings.get(directory);
+        if (listing == null) {
+            listing = scan(directory);
+            listings.put(directory, listing);
+        }
+        return listing;
+    }
+
+    // One pass over the directory as staged so far
+    private Listing scan(long directory) throws IOException {
+        Listing listing = new Listing();
+        listing.chain = fat.chain(directory);
+        int perCluster = clusterBytes / DirectoryCursor.ENTRY_SIZE;
+        listing.entries = (int) Math.min(Integer.MAX_VALUE, listing.chain.clusterCount() * perCluster);
+        listing.end = listing.entries;
+        DirEntryView view = new DirEntryView();
+        LongNameBuilder longName = new LongNameBuilder();
+        int[] longSlots = new int[20];
+        int longCount = 0;
+        byte[] rawName = new byte[11];
+        ByteBuffer cluster = ByteBuffer.allocate(clusterBytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int index = 0; index < listing.entries; index++) {
+            int offset = (index % perCluster) * DirectoryCursor.ENTRY_SIZE;
+            if (offset == 0) {
+                device.read(geometry.clusterOffset(listing.chain.clusterAt(index / perCluster)), cluster.clear());
+            }
+            view.wrap(cluster, offset);
+            if (view.isEnd()) {
+                listing.end = index;
+                listing.free.set(index, listing.entries); // everything after the end marker is free
+                break;
+            }
+            if (view.isDeleted()) {
+                listing.free.set(index);
+                longName.reset();
+                longCount = 0;
+            } else if (view.isLongName()) {
+                if ((view.lfnOrdinal() & 0x40) != 0) {
+                    longCount = 0;
+                }
+                longName.add(view);
+                if (longCount < longSlots.length) {
+                    longSlots[longCount++] = index;
+                }
+            } else {
+                String found = longName.finish(view);
+                cluster.get(offset, rawName);
+                DirEntry entry = new DirEntry(view.name(), found, view.attributes(), view.firstCluster(), view.size());
+                listing.add(new Slot(index, Arrays.copyOf(longSlots, found == null ? 0 : longCount),
+                        new String(rawName, StandardCharsets.ISO_8859_1), entry));
+                longCount = 0;
+            }
+        }
+        return listing;
+    }
+
+    // Hidden and system entries count too, so deleting never orphans anything
+    private boolean isEmptyDirectory(long directory) throws IOException {
+        Set<String> names = new HashSet<>(listing(directory).shortNames);
+        names.remove(new String(dotName("."), StandardCharsets.ISO_8859_1));
+        names.remove(new String(dotName(".."), StandardCharsets.ISO_8859_1));
+        return names.isEmpty();
+    }
+
+    /** Index of the first of {@code count} consecutive free entries, growing the directory if it is full. */
+    private int allocateSlots(long directory, Listing listing, int count) throws IOException {
+        BitSet free = listing.free;
+        int start = free.nextSetBit(0);
+        while (start >= 0 && start < listing.entries) {
+            int end = Math.min(free.nextClearBit(start), listing.entries);
+            if (end - start >= count) {
+                return claim(listing, start, count);
+            }
+            start = free.nextSetBit(end);
+        }
+        // A free run at the very end is continued into the new clusters
+        start = listing.entries;
+        while (start > 0 && free.get(start - 1)) {
+            start--;
+        }
+        long tail = listing.chain.clusterAt(listing.chain.clusterCount() - 1);
+        int perCluster = clusterBytes / DirectoryCursor.ENTRY_SIZE;
+        while (listing.entries - start < count) {
+            int added = allocate(1, tail + 1)[0];
+            setFat(tail, added);
+            setFat(added, END_OF_CHAIN);
+            device.writeThrough(geometry.clusterOffset(added), ByteBuffer.allocate(clusterBytes)); // all end markers
+            free.set(listing.entries, listing.entries + perCluster);
+            listing.entries += perCluster;
+            tail = added;
+        }
+        listing.chain = fat.chain(directory);
+        fat.invalidate(directory);
+        return claim(listing, start, count);
+    }
+
+    // Entries past the end marker may hold leftovers, so the marker moves behind a run that passes it
+    private int claim(Listing listing, int start, int count) throws IOException {
+        int after = start + count;
+        if (after > listing.end) {
+            if (after < listing.entries) {
+                device.write(listing.offset(after), ByteBuffer.wrap(new byte[1]));
+            }
+            listing.end = after;
+        }
+        return start;
+    }
+
+    private void writeEntry(Listing listing, int first, int longEntries, byte[] shortName, String longName,
+            int attributes, long cluster, long size) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(DirectoryCursor.ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (longEntries > 0) {
+            int checksum = checksum(shortName);
+            for (int k = 0; k < longEntries; k++) {
+                int ordinal = longEntries - k; // the last fragment comes first on disk
+                Arrays.fill(entry.array(), (byte) 0);
+                entry.put(0, (byte) (ordinal | (k == 0 ? 0x40 : 0)));
+                entry.put(11, (byte) DirEntry.ATTR_LONG_NAME);
+                entry.put(13, (byte) checksum);
+                for (int i = 0; i < 13; i++) {
+                    int index = (ordinal - 1) * 13 + i;
+                    char c = index < longName.length() ? longName.charAt(index) : index == longName.length() ? 0 : (char) 0xFFFF;
+                    entry.putChar(LFN_CHAR_OFFSETS[i], c);
+                }
+                device.write(listing.offset(first + k), entry.clear());
+            }
+        }
+        Arrays.fill(entry.array(), (byte) 0);
+        putShortEntry(entry, 0, shortName, attributes, cluster, size);
+        device.write(listing.offset(first + longEntries), entry.clear());
+    }
+
+    private static void putShortEntry(ByteBuffer buffer, int base, byte[] name, int attributes, long cluster, long size) {
+        int[] now = dosNow();
+        buffer.put(base, name);
+        buffer.put(base + 11, (byte) attributes);
+        buffer.put(base + 13, (byte) now[0]);
+        buffer.putShort(base + 14, (short) now[1]);
+        buffer.putShort(base + 16, (short) now[2]);
+        buffer.putShort(base + 18, (short) now[2]);
+        buffer.putShort(base + 20, (short) (cluster >>> 16));
+        buffer.putShort(base + 22, (short) now[1]);
+        buffer.putShort(base + 24, (short) now[2]);
+        buffer.putShort(base + 26, (short) cluster);
+        buffer.putInt(base + 28, (int) size);
+    }
+
+    // Tenths of a second, time and date in FAT's packed format
+    private static int[] dosNow() {
+        LocalDateTime now = LocalDateTime.now();
+        int time = now.getHour() << 11 | now.getMinute() << 5 | now.getSecond() / 2;
+        int date = (Math.max(now.getYear(), 1980) - 1980) << 9 | now.getMonthValue() << 5 | now.getDayOfMonth();
+        int tenths = (now.getSecond() % 2) * 100 + now.getNano() / 10_000_000;
+        return new int[] {tenths, time, date};
+    }
+
+    private static int checksum(byte[] shortName) {
+        int sum = 0;
+        for (int i = 0; i < 11; i++) {
+            sum = (((sum & 1) << 7) + ((sum & 0xFF) >> 1) + (shortName[i] & 0xFF)) & 0xFF;
+        }
+        return sum;
+    }
+
+    // ---- names ----
+
+    private static void checkName(String name) throws IOException {
+        if (name.isEmpty() || name.length() > 255 || name.equals(".") || name.equals("..")
+                || name.endsWith(" ") || name.endsWith(".")) {
+            throw new IOException("Invalid name: \"" + name + "\"");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < 0x20 || "\"*/:<>?\\|".indexOf(c) >= 0) {
+                throw new IOException("Invalid name: \"" + name + "\"");
+            }
+        }
+    }
+
+    /**
+     * The 8.3 name for {@code name}: the name itself when it already is a
+     * valid upper-case 8.3 name, otherwise a "BASIS~N.EXT" name not in
+     * {@code taken}.
+     */
+    static byte[] shortName(String name, Set<String> taken) {
+        String upper = name.toUpperCase(Locale.ROOT);
+        int dot = upper.lastIndexOf('.');
+        String base = clean(dot > 0 ? upper.substring(0, dot) : upper);
+        String extension = clean(dot > 0 ? upper.substring(dot + 1) : "");
+        boolean exact = base.length() <= 8 && extension.length() <= 3 && !base.isEmpty()
+                && (base + (extension.isEmpty() ? "" : "." + extension)).equals(upper);
+        if (base.isEmpty()) {
+            base = "_";
+        }
+        extension = extension.length() > 3 ? extension.substring(0, 3) : extension;
+        if (exact) {
+            String candidate = pad(base, extension);
+            if (!taken.contains(candidate)) {
+                return candidate.getBytes(StandardCharsets.ISO_8859_1);
+            }
+        }
+        for (int n = 1; ; n++) {
+            String tail = "~" + n;
+            String candidate = pad(base.substring(0, Math.min(base.length(), 8 - tail.length())) + tail, extension);
+            if (!taken.contains(candidate)) {
+                return candidate.getBytes(StandardCharsets.ISO_8859_1);
+            }
+        }
+    }
+
+    // Drops spaces and dots and replaces characters that are not allowed in a short name
+    private static String clean(String part) {
+        StringBuilder cleaned = new StringBuilder();
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c == ' ' || c == '.') {
+                continue;
+            }
+            boolean allowed = (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || SHORT_NAME_CHARS.indexOf(c) >= 0;
+            cleaned.append(allowed ? c : '_');
+        }
+        return cleaned.toString();
+    }
+
+    private static String pad(String base, String extension) {
+        return String.format("%-8s%-3s", base, extension);
+    }
+
+    private static byte[] dotName(String dots) {
+        return pad(dots, "").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String displayShortName(byte[] shortName) {
+        String base = new String(shortName, 0, 8, StandardCharsets.ISO_8859_1).trim();
+        String extension = new String(shortName, 8, 3, StandardCharsets.ISO_8859_1).trim();
+        return extension.isEmpty() ? base : base + "." + extension;
+    }
+}
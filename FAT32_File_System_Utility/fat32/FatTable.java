@@ -0,0 +1,226 @@
+package fat32;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * The first copy of the FAT, decoded once into an int[] so following a
+ * cluster chain never touches the image. Extent lists for chains are built
+ * on first use and cached, least recently used first out once their
+ * estimated size passes the bound, as in {@link DirectoryCache}.
+ */
+public class FatTable {
+
+    public static final int ENTRY_MASK = 0x0FFFFFFF; // high 4 bits are reserved
+    public static final int BAD_CLUSTER = 0x0FFFFFF7;
+    public static final int END_OF_CHAIN = 0x0FFFFFF8; // anything at or above this ends a chain
+
+    public static final long DEFAULT_MAX_EXTENT_BYTES = 4L << 20;
+
+    private static final int LOAD_WINDOW = 1 << 20;
+
+    private static class Node {
+        final ExtentList list;
+        volatile long lastUsed;
+
+        Node(ExtentList list, long lastUsed) {
+            this.list = list;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final int[] entries;
+    private final long maxExtentBytes;
+    private final Map<Integer, Node> extents = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong extentBytes = new AtomicLong();
+
+    public FatTable(int[] entries) {
+        this(entries, DEFAULT_MAX_EXTENT_BYTES);
+    }
+
+    public FatTable(int[] entries, long maxExtentBytes) {
+        this.entries = entries;
+        this.maxExtentBytes = maxExtentBytes;
+    }
+
+    public static FatTable load(BlockDevice device, VolumeGeometry geometry) throws IOException {
+        return load(device, geometry, DEFAULT_MAX_EXTENT_BYTES);
+    }
+
+    /** Reads the first FAT of the volume into memory, caching up to {@code maxExtentBytes} of extent lists. */
+    public static FatTable load(BlockDevice device, VolumeGeometry geometry, long maxExtentBytes) throws IOException {
+        long fatOffset = geometry.getFatOffset();
+        // Entries past the last data cluster are padding, so don't keep them
+        long count = Math.min(geometry.getFatBytes(), device.size() - fatOffset) / 4;
+        count = Math.min(count, geometry.getClusterCount() + 2);
+        if (count > Integer.MAX_VALUE - 8) {
+            throw new IOException("FAT too large: " + count + " entries");
+        }
+        int[] entries = new int[(int) count];
+        int done = 0;
+        while (done < entries.length) {
+            int n = Math.min(LOAD_WINDOW / 4, entries.length - done);
+            ByteBuffer window = device.view(fatOffset + (long) done * 4, n * 4);
+            window.asIntBuffer().get(entries, done, n);
+            done += n;
+        }
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] &= ENTRY_MASK;
+        }
+        return new FatTable(entries, maxExtentBytes);
+    }
+
+    /** Number of entries in the table, including the two reserved ones. */
+    public int size() {
+        return entries.length;
+    }
+
+    /** Raw (masked) FAT entry for {@code cluster}. */
+    public int get(long cluster) {
+        return entries[(int) cluster];
+    }
+
+    /** Next cluster in the chain, or -1 if {@code cluster} is the last one. */
+    public long next(long cluster) {
+        if (cluster < 2 || cluster >= entries.length) {
+            return -1;
+        }
+        Metrics.increment(Metrics.Counter.CLUSTER_HOPS);
+        int next = entries[(int) cluster];
+        return isChainLink(next) ? next : -1;
+    }
+
+    public boolean isChainLink(int value) {
+        return value >= 2 && value < BAD_CLUSTER && value < entries.length;
+    }
+
+    /** Run-length encoded chain starting at {@code firstCluster}, cached until evicted. */
+    public ExtentList extents(long firstCluster) {
+        if (firstCluster < 2 || firstCluster >= entries.length) {
+            return ExtentList.EMPTY;
+        }
+        Node node = extents.get((int) firstCluster);
+        if (node != null) {
+            node.lastUsed = clock.getAndIncrement();
+            return node.list;
+        }
+        node = extents.computeIfAbsent((int) firstCluster, key -> {
+            Node built = new Node(buildExtents(key), clock.getAndIncrement());
+            extentBytes.addAndGet(built.list.estimatedBytes());
+            return built;
+        });
+        if (extentBytes.get() > maxExtentBytes) {
+            evict((int) firstCluster);
+        }
+        return node.list;
+    }
+
+    /** Estimated heap held by cached extent lists. */
+    public long cachedExtentBytes() {
+        return extentBytes.get();
+    }
+
+    /** Drops every cached extent list; chains are rebuilt from the table on demand. */
+    public void clearExtents() {
+        for (Map.Entry<Integer, Node> entry : extents.entrySet()) {
+            if (extents.remove(entry.getKey(), entry.getValue())) {
+                extentBytes.addAndGet(-entry.getValue().list.estimatedBytes());
+            }
+        }
+    }
+
+    private synchronized void evict(int keep) {
+        if (extentBytes.get() <= maxExtentBytes) {
+            return; // another thread got here first
+        }
+        List<Map.Entry<Integer, Node>> byAge = new ArrayList<>(extents.entrySet());
+        byAge.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        for (Map.Entry<Integer, Node> eldest : byAge) {
+            if (extentBytes.get() <= maxExtentBytes) {
+                break;
+            }
+            if (eldest.getKey() == keep) {
+                continue; // never evict the chain we just built
+            }
+            if (extents.remove(eldest.getKey(), eldest.getValue())) {
+                extentBytes.addAndGet(-eldest.getValue().list.estimatedBytes());
+            }
+        }
+    }
+
+    /** Changes one entry. Only {@link Fat32Writer} does this, and it invalidates the chains it touches. */
+    void set(long cluster, int value) {
+        entries[(int) cluster] = value & ENTRY_MASK;
+    }
+
+    /** Forgets the cached extent list of the chain starting at {@code firstCluster}. */
+    void invalidate(long firstCluster) {
+        Node removed = extents.remove((int) firstCluster);
+        if (removed != null) {
+            extentBytes.addAndGet(-removed.list.estimatedBytes());
+        }
+    }
+
+    /** Chain starting at {@code firstCluster} without caching it, for one-off passes over every file. */
+    ExtentList chain(long firstCluster) {
+        if (firstCluster < 2 || firstCluster >= entries.length) {
+            return ExtentList.EMPTY;
+        }
+        return buildExtents((int) firstCluster);
+    }
+
+    /** Caches an extent list that was decoded elsewhere, e.g. from a {@link MetadataIndex}. */
+    void seed(long firstCluster, ExtentList list) {
+        if (firstCluster >= 2 && firstCluster < entries.length) {
+            if (extents.putIfAbsent((int) firstCluster, new Node(list, clock.getAndIncrement())) == null) {
+                extentBytes.addAndGet(list.estimatedBytes());
+                if (extentBytes.get() > maxExtentBytes) {
+                    evict((int) firstCluster);
+                }
+            }
+        }
+    }
+
+    /** CRC32C of the table's current contents, used to tell whether a saved index still matches. */
+    public long checksum() {
+        CRC32C crc = new CRC32C();
+        ByteBuffer bytes = ByteBuffer.allocate(LOAD_WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer ints = bytes.asIntBuffer();
+        for (int done = 0; done < entries.length; ) {
+            int n = Math.min(ints.capacity(), entries.length - done);
+            ints.clear();
+            ints.put(entries, done, n);
+            crc.update(bytes.clear().limit(n * 4));
+            done += n;
+        }
+        return crc.getValue();
+    }
+
+    private ExtentList buildExtents(int firstCluster) {
+        ExtentList.Builder builder = new ExtentList.Builder();
+        int cluster = firstCluster;
+        // A corrupt FAT can loop, so never follow more hops than there are clusters
+        int hops = 0;
+        while (hops < entries.length) {
+            builder.add(cluster);
+            hops++;
+            int next = entries[cluster];
+            if (!isChainLink(next)) {
+                break;
+            }
+            cluster = next;
+        }
+        Metrics.add(Metrics.Counter.CLUSTER_HOPS, hops);
+        return builder.build();
+    }
+}
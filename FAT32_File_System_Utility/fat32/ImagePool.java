@@ -0,0 +1,213 @@
+package fat32;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of named images opened on demand and shared by every request,
+ * with one memory budget across all of them. A volume's footprint is its
+ * FAT plus every cache built on it (see {@link Fat32Volume#cachedBytes}),
+ * and requests {@link #reserve} what they allocate themselves. Whenever
+ * the total passes the budget, the least recently used images first lose
+ * their caches, in use or not, and idle ones are then closed, to be
+ * reopened by the next request that needs them.
+ */
+public class ImagePool implements Closeable {
+
+    private static class Image {
+        final String path;
+        final Object opening = new Object();
+        volatile Fat32Volume volume;
+        int leases;      // guarded by the pool
+        long lastUsed;   // guarded by the pool
+
+        Image(String path) {
+            this.path = path;
+        }
+
+        long footprint() {
+            Fat32Volume open = volume;
+            return open == null ? 0 : open.cachedBytes();
+        }
+    }
+
+    /** Use of one image by one request; close it when the request is done. */
+    public class Lease implements AutoCloseable {
+        private final Image image;
+        private final Fat32Volume volume;
+        private boolean closed;
+
+        private Lease(Image image, Fat32Volume volume) {
+            this.image = image;
+            this.volume = volume;
+        }
+
+        public Fat32Volume getVolume() {
+            return volume;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(image);
+            }
+        }
+    }
+
+    private final Map<String, Image> images = new LinkedHashMap<>();
+    private final BlockDevice.Mode mode;
+    private final long budgetBytes;
+    private long reservedBytes;
+    private long clock;
+
+    /**
+     * @param paths       image files by the name requests use for them
+     * @param budgetBytes memory shared by the FATs and caches of all open images and by reservations
+     */
+    public ImagePool(Map<String, String> paths, BlockDevice.Mode mode, long budgetBytes) {
+        paths.forEach((name, path) -> images.put(name, new Image(path)));
+        this.mode = mode;
+        this.budgetBytes = budgetBytes;
+    }
+
+    public Set<String> names() {
+        return images.keySet();
+    }
+
+    /** Opens {@code name} if needed and holds it open until the lease is closed. */
+    public Lease acquire(String name) throws IOException {
+        Image image = images.get(name);
+        if (image == null) {
+            throw new FileNotFoundException("No image named " + name);
+        }
+        synchronized (this) {
+            image.leases++;
+            image.lastUsed = clock++;
+        }
+        // Opening loads the FAT; only requests for this image wait for it
+        boolean opened = false;
+        try {
+            Fat32Volume volume = image.volume;
+            if (volume == null) {
+                synchronized (image.opening) {
+                    volume = image.volume;
+                    if (volume == null) {
+                        // No single cache may take the whole budget, or one busy image starves the rest
+                        volume = Fat32Volume.open(image.path, mode, budgetBytes / 4, budgetBytes / 4, null);
+                        image.volume = volume;
+                        opened = true;
+                    }
+                }
+            }
+            Lease lease = new Lease(image, volume);
+            if (opened) {
+                trim(0);
+            }
+            return lease;
+        } catch (IOException | RuntimeException e) {
+            release(image);
+            throw e;
+        }
+    }
+
+    /** Memory held by open images and reservations, as counted against the budget. */
+    public synchronized long usedBytes() {
+        long used = reservedBytes;
+        for (Image image : images.values()) {
+            used += image.footprint();
+        }
+        return used;
+    }
+
+    /**
+     * Counts {@code bytes} that a request is about to allocate against the
+     * budget, until {@link #unreserve} returns them. Fails rather than waits
+     * if they do not fit, so requests never block each other; a reservation
+     * made while no other is held always succeeds, so a small budget still
+     * serves one request at a time.
+     */
+    public synchronized void reserve(long bytes) throws IOException {
+        if (reservedBytes > 0) {
+            trim(bytes);
+            if (usedBytes() + bytes > budgetBytes) {
+                throw new IOException("Not enough memory for " + bytes + " more bytes, try again or ask for less");
+            }
+        }
+        reservedBytes += bytes;
+        trim(0);
+    }
+
+    public synchronized void unreserve(long bytes) {
+        reservedBytes -= bytes;
+    }
+
+    private synchronized void release(Image image) {
+        image.leases--;
+        trim(0);
+    }
+
+    // Makes room for `extra` more bytes if it can
+    private synchronized void trim(long extra) {
+        long limit = budgetBytes - extra;
+        long used = usedBytes();
+        if (used <= limit) {
+            return;
+        }
+        List<Image> open = new ArrayList<>();
+        for (Image image : images.values()) {
+            if (image.volume != null) {
+                open.add(image);
+            }
+        }
+        open.sort(Comparator.comparingLong(image -> image.lastUsed));
+        // Caches are cheap to rebuild and safe to drop under a request, so they go before whole volumes
+        for (Image image : open) {
+            if (used <= limit) {
+                return;
+            }
+            long before = image.footprint();
+            image.volume.clearCaches();
+            used -= before - image.footprint();
+        }
+        List<Image> idle = new ArrayList<>();
+        for (Image image : open) {
+            if (image.leases == 0) {
+                idle.add(image);
+            }
+        }
+        for (Image image : idle) {
+            if (used <= limit) {
+                return;
+            }
+            used -= image.footprint();
+            closeQuietly(image);
+        }
+    }
+
+    private static void closeQuietly(Image image) {
+        Fat32Volume volume = image.volume;
+        image.volume = null;
+        try {
+            volume.close();
+        } catch (IOException e) {
+            // Read-only, nothing is lost; it is reopened on the next request
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Image image : images.values()) {
+            if (image.volume != null) {
+                closeQuietly(image);
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package fat32;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * A {@link BlockDevice} that can be written, in two ways:
+ * <ul>
+ * <li>{@link #write} stages metadata (FAT, directory and FSInfo sectors) in
+ *     an in-memory write-back cache of 512-byte pages. Reads see staged
+ *     pages straight away.</li>
+ * <li>{@link #writeThrough} writes file data directly to the image. Callers
+ *     only use it for bytes that no committed metadata makes visible:
+ *     clusters it does not reference yet, and the slack past the committed
+ *     size in a file's last cluster, which an append fills before its new
+ *     size is committed. Either way an interrupted batch cannot damage
+ *     existing files.</li>
+ * </ul>
+ * {@link #commit} first flushes that data. It then writes every staged page
+ * to an intent log next to the image, coalescing consecutive pages into
+ * runs, and forces the log. Only after that are the runs applied to the
+ * image and the log deleted. A crash at any point leaves either the old
+ * metadata or a complete log, which {@link #recover} replays on the next
+ * writable open. Until then read-only opens refuse the image, see
+ * {@link #isPending}.
+ */
+public class JournaledBlockDevice implements BlockDevice {
+
+    public static final int PAGE_SIZE = 512;
+
+    private static final long JOURNAL_MAGIC = 0x4C4E_524A_3233_5446L; // "FT32JRNL", little-endian
+
+    private final BlockDevice reads;
+    private final FileChannel writes;
+    private final Path journal;
+    private final TreeMap<Long, byte[]> pages = new TreeMap<>();
+    private volatile int pageCount; // lets reads skip the overlay without locking when nothing is staged
+    private boolean dataWritten;
+
+    /**
+     * @param reads   device the image is read through
+     * @param writes  the same image, opened for writing
+     * @param journal where the intent log is kept while a batch is applied
+     */
+    public JournaledBlockDevice(BlockDevice reads, FileChannel writes, Path journal) {
+        this.reads = reads;
+        this.writes = writes;
+        this.journal = journal;
+    }
+
+    /** Where the intent log of {@code image} is kept. */
+    public static Path journalFor(Path image) {
+        return image.resolveSibling(image.getFileName() + ".journal");
+    }
+
+    /**
+     * Replays the intent log at {@code journal} onto {@code image} if it is
+     * complete, then deletes it. A torn log means the image was never
+     * touched, so it is just discarded. Returns whether anything was replayed.
+     */
+    public static boolean recover(FileChannel image, Path journal) throws IOException {
+        ByteBuffer log = readLog(journal);
+        if (log == null) {
+            return false;
+        }
+        boolean complete = isComplete(log);
+        if (complete) {
+            int runs = log.getInt(8);
+            log.position(12);
+            for (int i = 0; i < runs; i++) {
+                long offset = log.getLong();
+                int length = log.getInt();
+                ByteBuffer run = log.slice(log.position(), length);
+                log.position(log.position() + length);
+                while (run.hasRemaining()) {
+                    offset += image.write(run, offset);
+                }
+            }
+            image.force(true);
+        }
+        Files.delete(journal);
+        return complete;
+    }
+
+    /**
+     * Whether {@code journal} holds a complete log that {@link #recover} has
+     * not replayed yet, i.e. the image may be missing committed metadata.
+     */
+    public static boolean isPending(Path journal) throws IOException {
+        ByteBuffer log = readLog(journal);
+        return log != null && isComplete(log);
+    }
+
+    // The whole log, or null if there is none
+    private static ByteBuffer readLog(Path journal) throws IOException {
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Journal too large: " + journal);
+            }
+            ByteBuffer log = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (log.hasRemaining()) {
+                if (channel.read(log) < 0) {
+                    break;
+                }
+            }
+            return log.flip();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static boolean isComplete(ByteBuffer log) {
+        if (log.remaining() < 20 || log.getLong(0) != JOURNAL_MAGIC) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(log.duplicate().limit(log.limit() - 8));
+        return log.getLong(log.limit() - 8) == crc.getValue();
+    }
+
+    @Override
+    public boolean isMapped() {
+        return reads.isMapped();
+    }
+
+    @Override
+    public long size() {
+        return reads.size();
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        reads.read(position, dst);
+        if (pageCount > 0 && dst.position() > start) {
+            patch(position, dst.duplicate().position(start).limit(dst.position()).slice());
+        }
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        if (pageCount == 0 || !overlaps(position, length)) {
+            return reads.view(position, length);
+        }
+        length = (int) Math.max(0, Math.min(length, size() - position));
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        read(position, copy);
+        return copy.flip().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Stages {@code src} as metadata, to be written by the next {@link #commit}. */
+    public synchronized void write(long position, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            long page = position / PAGE_SIZE;
+            int within = (int) (position % PAGE_SIZE);
+            byte[] bytes = pages.get(page);
+            if (bytes == null) {
+                bytes = new byte[PAGE_SIZE];
+                reads.read(page * PAGE_SIZE, ByteBuffer.wrap(bytes));
+                pages.put(page, bytes);
+                pageCount = pages.size();
+            }
+            int n = Math.min(src.remaining(), PAGE_SIZE - within);
+            src.get(bytes, within, n);
+            position += n;
+        }
+    }
+
+    /** Writes file data straight to the image, dropping any staged pages it covers. */
+    public synchronized void writeThrough(long position, ByteBuffer src) throws IOException {
+        if (pageCount > 0 && src.hasRemaining()) {
+            pages.subMap(position / PAGE_SIZE, true, (position + src.remaining() - 1) / PAGE_SIZE, true).clear();
+            pageCount = pages.size();
+        }
+        while (src.hasRemaining()) {
+            position += writes.write(src, position);
+        }
+        dataWritten = true;
+    }
+
+    /** Bytes staged for the next commit. */
+    public long stagedBytes() {
+        return (long) pageCount * PAGE_SIZE;
+    }
+
+    /** Makes everything written so far durable, as described in the class comment. */
+    public synchronized void commit() throws IOException {
+        if (dataWritten) {
+            writes.force(false); // data before the metadata that points at it
+            dataWritten = false;
+        }
+        if (pages.isEmpty()) {
+            return;
+        }
+        List<long[]> runs = new ArrayList<>(); // first page, page count
+        for (long page : pages.keySet()) {
+            long[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (last != null && last[0] + last[1] == page) {
+                last[1]++;
+            } else {
+                runs.add(new long[] {page, 1});
+            }
+        }
+
+        ByteBuffer log = ByteBuffer.allocate(12 + runs.size() * 12 + pages.size() * PAGE_SIZE + 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        log.putLong(JOURNAL_MAGIC).putInt(runs.size());
+        for (long[] run : runs) {
+            log.putLong(run[0] * PAGE_SIZE).putInt((int) run[1] * PAGE_SIZE);
+            for (long page = run[0]; page < run[0] + run[1]; page++) {
+                log.put(pages.get(page));
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(log.duplicate().flip());
+        log.putLong(crc.getValue()).flip();
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (log.hasRemaining()) {
+                channel.write(log);
+            }
+            channel.force(true);
+        }
+
+        // One write per run of consecutive pages, then the log is no longer needed
+        for (long[] run : runs) {
+            ByteBuffer bytes = ByteBuffer.allocate((int) run[1] * PAGE_SIZE);
+            for (long page = run[0]; page < run[0] + run[1]; page++) {
+                bytes.put(pages.get(page));
+            }
+            bytes.flip();
+            long offset = run[0] * PAGE_SIZE;
+            while (bytes.hasRemaining()) {
+                offset += writes.write(bytes, offset);
+            }
+        }
+        writes.force(false);
+        Files.delete(journal);
+        pages.clear();
+        pageCount = 0;
+    }
+
+    private synchronized boolean overlaps(long position, int length) {
+        return !pages.subMap(position / PAGE_SIZE, true, (position + Math.max(length, 1) - 1) / PAGE_SIZE, true).isEmpty();
+    }
+
+    // Copies staged pages over the bytes just read from the image
+    private synchronized void patch(long position, ByteBuffer dst) {
+        long end = position + dst.remaining();
+        for (Map.Entry<Long, byte[]> entry : pages.subMap(position / PAGE_SIZE, true, (end - 1) / PAGE_SIZE, true).entrySet()) {
+            long pageStart = entry.getKey() * PAGE_SIZE;
+            long from = Math.max(pageStart, position);
+            long to = Math.min(pageStart + PAGE_SIZE, end);
+            dst.put((int) (from - position), entry.getValue(), (int) (from - pageStart), (int) (to - from));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writes.close();
+        } finally {
+            reads.close();
+        }
+    }
+}
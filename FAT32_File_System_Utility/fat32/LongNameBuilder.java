@@ -0,0 +1,83 @@
+package fat32;
+
+/**
+ * Reassembles a VFAT long name from the entries that precede its short
+ * entry. The fragments are written into one reusable char[] as they are
+ * seen, so the only allocation is the final String.
+ */
+class LongNameBuilder {
+
+    private static final int CHARS_PER_ENTRY = 13;
+    private static final int MAX_ENTRIES = 20; // 255 characters
+    // Byte offsets of the 13 UTF-16 code units within an LFN entry
+    private static final int[] CHAR_OFFSETS = {1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30};
+
+    private final char[] chars = new char[CHARS_PER_ENTRY * MAX_ENTRIES];
+    private int length;        // characters in the name, -1 when nothing is pending
+    private int expected;      // ordinal the next fragment must carry
+    private int checksum;
+
+    LongNameBuilder() {
+        reset();
+    }
+
+    void reset() {
+        length = -1;
+        expected = 0;
+    }
+
+    /** Feeds one long name entry, in on-disk order. */
+    void add(DirEntryView view) {
+        int ordinal = view.lfnOrdinal();
+        int sequence = ordinal & 0x1F;
+        if ((ordinal & 0x40) != 0) {
+            // Last fragment of the name comes first on disk
+            if (sequence == 0 || sequence > MAX_ENTRIES) {
+                reset();
+                return;
+            }
+            length = sequence * CHARS_PER_ENTRY;
+            checksum = view.lfnChecksum();
+        } else if (length < 0 || sequence != expected || view.lfnChecksum() != checksum) {
+            reset(); // orphaned or out of order fragment
+            return;
+        }
+        int start = (sequence - 1) * CHARS_PER_ENTRY;
+        for (int i = 0; i < CHARS_PER_ENTRY; i++) {
+            char c = view.lfnChar(CHAR_OFFSETS[i]);
+            if (c == 0x0000 && start + i < length) {
+                length = start + i; // terminator, the rest is 0xFFFF padding
+            }
+            chars[start + i] = c;
+        }
+        expected = sequence - 1;
+    }
+
+    /**
+     * Returns the long name belonging to the short entry in {@code view}, or
+     * null if the fragments seen are incomplete, fail the checksum or spell
+     * a name that could not be a single path component. Resets the builder
+     * either way.
+     */
+    String finish(DirEntryView view) {
+        String name = null;
+        if (length > 0 && expected == 0 && view.shortNameChecksum() == checksum && isComponent()) {
+            name = new String(chars, 0, length);
+        }
+        reset();
+        return name;
+    }
+
+    // A separator, ".", ".." or a NUL would let the name reach outside its directory
+    private boolean isComponent() {
+        if ((length == 1 && chars[0] == '.') || (length == 2 && chars[0] == '.' && chars[1] == '.')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[i] == '/' || chars[i] == '\\' || chars[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package fat32;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps the whole image into memory. A single MappedByteBuffer is limited to
+ * 2 GB, so the image is split into fixed power-of-two sized chunks.
+ */
+public class MappedBlockDevice implements BlockDevice {
+
+    public static final int DEFAULT_CHUNK_SHIFT = 30; // 1 GB per mapping
+
+    private final MappedByteBuffer[] chunks;
+    private final int chunkShift;
+    private final long chunkMask;
+    private final long size;
+
+    public MappedBlockDevice(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_CHUNK_SHIFT);
+    }
+
+    public MappedBlockDevice(FileChannel channel, int chunkShift) throws IOException {
+        if (chunkShift < 12 || chunkShift > 30) {
+            throw new IllegalArgumentException("chunkShift must be between 12 and 30: " + chunkShift);
+        }
+        this.size = channel.size();
+        this.chunkShift = chunkShift;
+        this.chunkMask = (1L << chunkShift) - 1;
+        int count = (int) ((size + chunkMask) >>> chunkShift);
+        this.chunks = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << chunkShift;
+            long length = Math.min(1L << chunkShift, size - start);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+        // The mappings stay valid after the channel is closed
+    }
+
+    @Override
+    public boolean isMapped() {
+        return true;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, ByteBuffer dst) throws IOException {
+        if (position < 0 || position + dst.remaining() > size) {
+            throw new EOFException("Read of " + dst.remaining() + " bytes at " + position + " is outside the image");
+        }
+        Metrics.increment(Metrics.Counter.DEVICE_READS); // page faults, not syscalls
+        Metrics.add(Metrics.Counter.BYTES_READ, dst.remaining());
+        while (dst.hasRemaining()) {
+            MappedByteBuffer chunk = chunks[(int) (position >>> chunkShift)];
+            int within = (int) (position & chunkMask);
+            int n = Math.min(dst.remaining(), chunk.limit() - within);
+            dst.put(chunk.slice(within, n));
+            position += n;
+        }
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        if (position < 0 || position > size) {
+            throw new EOFException("Position " + position + " is outside the image");
+        }
+        length = (int) Math.min(length, size - position);
+        MappedByteBuffer chunk = chunks.length == 0 ? null : chunks[(int) (position >>> chunkShift)];
+        int within = (int) (position & chunkMask);
+        if (chunk != null && within + length <= chunk.limit()) {
+            Metrics.increment(Metrics.Counter.DEVICE_READS);
+            Metrics.add(Metrics.Counter.BYTES_READ, length);
+            return chunk.slice(within, length).order(ByteOrder.LITTLE_ENDIAN); // zero copy
+        }
+        // Straddles two mappings (or is empty), copy it out
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        read(position, copy);
+        return copy.flip().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() {
+        // Mappings are released when they are garbage collected
+    }
+}
@@ -0,0 +1,354 @@
+package fat32;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * A sidecar file holding every entry of a volume, so paths resolve from a
+ * cold start without reading any directory clusters. The file is memory
+ * mapped and holds:
+ * <ul>
+ * <li>an entry table (first cluster, size, attributes, names, extents);</li>
+ * <li>a name table sorted by (parent entry, upper-case name), searched one
+ *     path component at a time;</li>
+ * <li>the extent runs of every chain;</li>
+ * <li>a pool of UTF-8 strings.</li>
+ * </ul>
+ * The header records a checksum of the boot sector and the FAT, so an
+ * index built for a different or since-modified image is never used, and
+ * a checksum of the file itself, so a damaged one is rebuilt.
+ */
+public class MetadataIndex {
+
+    /** Parent id of the entries in the root directory. */
+    public static final int ROOT = -1;
+
+    private static final long MAGIC = 0x5844_4932_3354_4146L; // "FAT32IDX", little-endian
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 72;
+    private static final int CRC_OFFSET = 64; // CRC32C of everything but these 8 bytes
+    private static final int ENTRY_INTS = 9;
+    private static final int KEY_INTS = 4;
+
+    // Entry layout, in ints
+    private static final int E_CLUSTER = 0;
+    private static final int E_SIZE = 1;
+    private static final int E_ATTRIBUTES = 2;
+    private static final int E_NAME = 3;
+    private static final int E_NAME_LENGTH = 4;
+    private static final int E_LONG_NAME = 5;
+    private static final int E_LONG_NAME_LENGTH = 6;
+    private static final int E_EXTENTS = 7;
+    private static final int E_EXTENT_COUNT = 8;
+
+    private final ByteBuffer buffer;
+    private final FatTable fat;
+    private final int entryCount;
+    private final int keyCount;
+    private final int entriesOffset;
+    private final int keysOffset;
+    private final int extentsOffset;
+    private final int stringsOffset;
+
+    private MetadataIndex(ByteBuffer buffer, FatTable fat) {
+        this.buffer = buffer;
+        this.fat = fat;
+        this.entryCount = buffer.getInt(12);
+        this.keyCount = buffer.getInt(16);
+        this.entriesOffset = (int) buffer.getLong(32);
+        this.keysOffset = (int) buffer.getLong(40);
+        this.extentsOffset = (int) buffer.getLong(48);
+        this.stringsOffset = (int) buffer.getLong(56);
+    }
+
+    /**
+     * Maps the index at {@code file}, building it first if it is missing or
+     * was built for a different state of the image.
+     */
+    public static MetadataIndex openOrBuild(Path file, Fat32Volume volume) throws IOException {
+        long fingerprint = fingerprint(volume.getDevice(), volume.getFat());
+        MetadataIndex index;
+        try {
+            index = open(file, fingerprint, volume.getFat());
+        } catch (RuntimeException e) {
+            index = null; // damaged in a way the checks missed; rebuilding is cheaper than failing
+        }
+        if (index == null) {
+            write(file, volume, fingerprint);
+            index = open(file, fingerprint, volume.getFat());
+            if (index == null) {
+                throw new IOException("Index could not be read back: " + file);
+            }
+        }
+        return index;
+    }
+
+    /** Maps the index at {@code file}, or returns null if it is missing, damaged or stale. */
+    public static MetadataIndex open(Path file, long fingerprint, FatTable fat) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION || buffer.getLong(24) != fingerprint) {
+            return null;
+        }
+        for (int offset = 32; offset < CRC_OFFSET; offset += 8) {
+            long section = buffer.getLong(offset);
+            if (section < HEADER_BYTES || section > buffer.capacity()) {
+                return null;
+            }
+        }
+        if (buffer.getLong(CRC_OFFSET) != checksum(buffer)) {
+            return null;
+        }
+        return new MetadataIndex(buffer, fat);
+    }
+
+    private static long checksum(ByteBuffer file) {
+        CRC32C crc = new CRC32C();
+        crc.update(file.duplicate().position(0).limit(CRC_OFFSET));
+        crc.update(file.duplicate().position(CRC_OFFSET + 8).limit(file.capacity()));
+        return crc.getValue();
+    }
+
+    /** Checksum of the boot sector and the FAT that an index must match to be used. */
+    public static long fingerprint(BlockDevice device, FatTable fat) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(device.view(0, 512));
+        return crc.getValue() << 32 | fat.checksum();
+    }
+
+    /** Number of entries in the index. */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * Id of the entry called {@code name} (short or long, ignoring case) in
+     * the directory {@code parent}, or -1 if there is none.
+     */
+    public int lookup(int parent, String name) {
+        byte[] key = name.toUpperCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int base = keysOffset + mid * KEY_INTS * 4;
+            int cmp = Integer.compare(buffer.getInt(base), parent);
+            if (cmp == 0) {
+                cmp = compareString(buffer.getInt(base + 4), buffer.getInt(base + 8), key);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return buffer.getInt(base + 12);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The entry with id {@code id}. Its extents are handed to the FAT's cache
+     * on the way, so opening it does not walk the chain either.
+     */
+    public DirEntry entry(int id) {
+        int base = entriesOffset + id * ENTRY_INTS * 4;
+        long cluster = buffer.getInt(base + E_CLUSTER * 4) & 0xFFFFFFFFL;
+        String name = string(buffer.getInt(base + E_NAME * 4), buffer.getInt(base + E_NAME_LENGTH * 4));
+        int longOffset = buffer.getInt(base + E_LONG_NAME * 4);
+        String longName = longOffset < 0 ? null : string(longOffset, buffer.getInt(base + E_LONG_NAME_LENGTH * 4));
+        if (fat != null) {
+            fat.seed(cluster, extents(id));
+        }
+        return new DirEntry(name, longName, buffer.getInt(base + E_ATTRIBUTES * 4), cluster,
+                buffer.getInt(base + E_SIZE * 4) & 0xFFFFFFFFL);
+    }
+
+    /** The cluster chain of the entry with id {@code id}, as recorded when the index was built. */
+    public ExtentList extents(int id) {
+        int base = entriesOffset + id * ENTRY_INTS * 4;
+        int offset = extentsOffset + buffer.getInt(base + E_EXTENTS * 4) * 8;
+        int count = buffer.getInt(base + E_EXTENT_COUNT * 4);
+        if (count == 0) {
+            return ExtentList.EMPTY;
+        }
+        ExtentList.Builder builder = new ExtentList.Builder();
+        for (int i = 0; i < count; i++) {
+            builder.addRun(buffer.getInt(offset + i * 8), buffer.getInt(offset + i * 8 + 4));
+        }
+        return builder.build();
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(stringsOffset + offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Unsigned byte order, the same order the builder sorts keys in
+    private int compareString(int offset, int length, byte[] key) {
+        int base = stringsOffset + offset;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(buffer.get(base + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    private static class Key implements Comparable<Key> {
+        final int parent;
+        final byte[] name;
+        final int offset;
+        final int entry;
+
+        Key(int parent, byte[] name, int offset, int entry) {
+            this.parent = parent;
+            this.name = name;
+            this.offset = offset;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int cmp = Integer.compare(parent, other.parent);
+            return cmp != 0 ? cmp : Arrays.compareUnsigned(name, other.name);
+        }
+    }
+
+    /**
+     * Walks the whole tree of {@code volume} and writes its index to
+     * {@code file}. The file is written under a temporary name and moved into
+     * place, so a crash never leaves a truncated index behind.
+     */
+    public static void write(Path file, Fat32Volume volume, long fingerprint) throws IOException {
+        int[] entries = new int[1024 * ENTRY_INTS];
+        int entryCount = 0;
+        int[] extents = new int[1024];
+        int extentInts = 0;
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        List<Key> keys = new ArrayList<>();
+
+        // Breadth first; each queued pair is (entry id, starting cluster) of a directory
+        ArrayDeque<long[]> pending = new ArrayDeque<>();
+        Set<Long> seen = new HashSet<>();
+        pending.add(new long[] {ROOT, volume.getGeometry().getRootCluster()});
+        while (!pending.isEmpty()) {
+            long[] directory = pending.poll();
+            int parent = (int) directory[0];
+            if (!seen.add(directory[1])) {
+                continue; // a damaged image can link a directory back to an ancestor
+            }
+            Set<String> names = new HashSet<>();
+            for (DirEntry entry : volume.readDirectory(directory[1]).getEntries()) {
+                if (entry.getName().equals(".") || entry.getName().equals("..")) {
+                    continue;
+                }
+                if (entryCount * ENTRY_INTS == entries.length) {
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                }
+                int id = entryCount++;
+                int base = id * ENTRY_INTS;
+                ExtentList chain = volume.getFat().chain(entry.getFirstCluster());
+                if (extentInts + chain.extentCount() * 2 > extents.length) {
+                    extents = Arrays.copyOf(extents, Math.max(extents.length * 2, extentInts + chain.extentCount() * 2));
+                }
+                entries[base + E_EXTENTS] = extentInts / 2;
+                entries[base + E_EXTENT_COUNT] = chain.extentCount();
+                for (int i = 0; i < chain.extentCount(); i++) {
+                    extents[extentInts++] = chain.start(i);
+                    extents[extentInts++] = chain.length(i);
+                }
+                entries[base + E_CLUSTER] = (int) entry.getFirstCluster();
+                entries[base + E_SIZE] = (int) entry.getSize();
+                entries[base + E_ATTRIBUTES] = entry.getAttributes();
+
+                // The short name is already upper case, so it doubles as its own key
+                byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+                entries[base + E_NAME] = strings.size();
+                entries[base + E_NAME_LENGTH] = name.length;
+                if (names.add(entry.getName())) { // first match wins, as in Directory
+                    keys.add(new Key(parent, name, strings.size(), id));
+                }
+                strings.write(name);
+                entries[base + E_LONG_NAME] = -1;
+                if (entry.getLongName() != null) {
+                    byte[] longName = entry.getLongName().getBytes(StandardCharsets.UTF_8);
+                    entries[base + E_LONG_NAME] = strings.size();
+                    entries[base + E_LONG_NAME_LENGTH] = longName.length;
+                    strings.write(longName);
+                    String upper = entry.getLongName().toUpperCase(Locale.ROOT);
+                    if (names.add(upper)) {
+                        byte[] key = upper.getBytes(StandardCharsets.UTF_8);
+                        keys.add(new Key(parent, key, strings.size(), id));
+                        strings.write(key);
+                    }
+                }
+                if (entry.isDirectory() && entry.getFirstCluster() >= 2) {
+                    pending.add(new long[] {id, entry.getFirstCluster()});
+                }
+            }
+        }
+        keys.sort(null);
+
+        long entriesOffset = HEADER_BYTES;
+        long keysOffset = entriesOffset + (long) entryCount * ENTRY_INTS * 4;
+        long extentsOffset = keysOffset + (long) keys.size() * KEY_INTS * 4;
+        long stringsOffset = extentsOffset + (long) extentInts * 4;
+        long total = stringsOffset + strings.size();
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Index too large: " + total + " bytes");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+        out.putLong(MAGIC).putInt(VERSION).putInt(entryCount).putInt(keys.size()).putInt(extentInts / 2)
+                .putLong(fingerprint).putLong(entriesOffset).putLong(keysOffset).putLong(extentsOffset).putLong(stringsOffset);
+        out.position((int) entriesOffset);
+        out.asIntBuffer().put(entries, 0, entryCount * ENTRY_INTS);
+        out.position((int) keysOffset);
+        for (Key key : keys) {
+            out.putInt(key.parent).putInt(key.offset).putInt(key.name.length).putInt(key.entry);
+        }
+        out.asIntBuffer().put(extents, 0, extentInts);
+        out.position((int) stringsOffset);
+        out.put(strings.toByteArray()).flip();
+        out.putLong(CRC_OFFSET, checksum(out));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,227 @@
+package fat32;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and per-command latency histograms. Everything is
+ * striped ({@link LongAdder}) so threads don't contend, and every update
+ * is guarded by one volatile flag, so while metrics are off (the default)
+ * instrumented code pays a single read.
+ */
+public final class Metrics {
+
+    public enum Counter {
+        BYTES_READ("bytes read"),
+        DEVICE_READS("device reads"),
+        READ_SYSCALLS("read syscalls"),
+        DIRECTORY_ENTRIES_SCANNED("directory entries scanned"),
+        DIRECTORY_CACHE_HITS("directory cache hits"),
+        DIRECTORY_CACHE_MISSES("directory cache misses"),
+        CLUSTER_HOPS("cluster hops"),
+        CHUNK_CACHE_HITS("chunk cache hits"),
+        CHUNK_CACHE_MISSES("chunk cache misses");
+
+        private final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /** Latencies bucketed by power of two nanoseconds. */
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))].add(1);
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long meanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / n;
+        }
+
+        /** Upper bound of the bucket holding the {@code p}-th percentile (0-100). */
+        public long percentileNanos(double p) {
+            long n = count.sum();
+            long rank = (long) Math.ceil(n * p / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            totalNanos.reset();
+        }
+    }
+
+    /** JMX view, registered as {@code fat32:type=Metrics}. */
+    public interface MetricsMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        Map<String, Long> getCounters();
+
+        Map<String, Long> getCommandCounts();
+
+        Map<String, Long> getCommandMeanMicros();
+
+        Map<String, Long> getCommandP99Micros();
+
+        void reset();
+    }
+
+    private static final LongAdder[] COUNTERS = new LongAdder[Counter.values().length];
+    private static final Map<String, Histogram> COMMANDS = new ConcurrentHashMap<>();
+    private static volatile boolean enabled;
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            COUNTERS[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static void add(Counter counter, long n) {
+        if (enabled) {
+            COUNTERS[counter.ordinal()].add(n);
+        }
+    }
+
+    public static void increment(Counter counter) {
+        if (enabled) {
+            COUNTERS[counter.ordinal()].increment();
+        }
+    }
+
+    public static long get(Counter counter) {
+        return COUNTERS[counter.ordinal()].sum();
+    }
+
+    /** Start time for {@link #recordCommand}, or 0 when metrics are off so no clock is read. */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records one run of {@code command} that began at {@code start}. */
+    public static void recordCommand(String command, long start) {
+        if (enabled && start != 0) {
+            COMMANDS.computeIfAbsent(command, c -> new Histogram()).record(System.nanoTime() - start);
+        }
+    }
+
+    /** Latency histograms by command name, sorted. */
+    public static Map<String, Histogram> commands() {
+        return new TreeMap<>(COMMANDS);
+    }
+
+    public static void reset() {
+        for (LongAdder counter : COUNTERS) {
+            counter.reset();
+        }
+        for (Histogram histogram : COMMANDS.values()) {
+            histogram.reset();
+        }
+    }
+
+    /** Registers the JMX view with the platform MBean server, once. */
+    public static synchronized void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("fat32:type=Metrics");
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MBean(), name);
+        }
+    }
+
+    private static class MBean implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return Metrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean on) {
+            Metrics.setEnabled(on);
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> counters = new TreeMap<>();
+            for (Counter counter : Counter.values()) {
+                counters.put(counter.getLabel(), get(counter));
+            }
+            return counters;
+        }
+
+        @Override
+        public Map<String, Long> getCommandCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            COMMANDS.forEach((command, histogram) -> counts.put(command, histogram.count()));
+            return counts;
+        }
+
+        @Override
+        public Map<String, Long> getCommandMeanMicros() {
+            Map<String, Long> means = new TreeMap<>();
+            COMMANDS.forEach((command, histogram) -> means.put(command, histogram.meanNanos() / 1000));
+            return means;
+        }
+
+        @Override
+        public Map<String, Long> getCommandP99Micros() {
+            Map<String, Long> p99 = new TreeMap<>();
+            COMMANDS.forEach((command, histogram) -> p99.put(command, histogram.percentileNanos(99) / 1000));
+            return p99;
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
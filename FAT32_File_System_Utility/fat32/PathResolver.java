@@ -0,0 +1,193 @@
+package fat32;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves absolute and relative paths ("/A/B/C.TXT", "../X") to directory
+ * entries. Paths are normalised textually first, then walked from the root
+ * with every resolved prefix memoised, so a warm lookup costs one hash hit
+ * per path component. Once {@code maxPaths} are memoised the least recently
+ * used eighth is dropped, as in {@link DirectoryCache}. Safe to share
+ * between sessions on different threads.
+ */
+public class PathResolver {
+
+    public static final int DEFAULT_MAX_PATHS = 1 << 16;
+
+    private static final long BYTES_PER_PATH = 256; // map node, key, Resolved and its path string
+
+    /** A resolved path. The root has a null entry. */
+    public static class Resolved {
+        private final String path;
+        private final DirEntry entry;
+        private final long cluster;
+        private final int id; // entry id in the MetadataIndex, if there is one
+
+        Resolved(String path, DirEntry entry, long cluster) {
+            this(path, entry, cluster, MetadataIndex.ROOT);
+        }
+
+        Resolved(String path, DirEntry entry, long cluster, int id) {
+            this.path = path;
+            this.entry = entry;
+            this.cluster = cluster;
+            this.id = id;
+        }
+
+        /** Absolute path using the names stored on disk. */
+        public String getPath() {
+            return path;
+        }
+
+        public DirEntry getEntry() {
+            return entry;
+        }
+
+        /** First cluster of the file or directory. */
+        public long getCluster() {
+            return cluster;
+        }
+
+        public boolean isDirectory() {
+            return entry == null || entry.isDirectory();
+        }
+    }
+
+    private static class Node {
+        final Resolved value;
+        volatile long lastUsed;
+
+        Node(Resolved value, long lastUsed) {
+            this.value = value;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final DirectoryCache directories;
+    private final MetadataIndex index;
+    private final Resolved root;
+    private final Map<String, Node> resolved = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final int maxPaths;
+
+    public PathResolver(DirectoryCache directories, long rootCluster) {
+        this(directories, rootCluster, DEFAULT_MAX_PATHS, null);
+    }
+
+    public PathResolver(DirectoryCache directories, long rootCluster, int maxPaths) {
+        this(directories, rootCluster, maxPaths, null);
+    }
+
+    /** With an {@code index}, prefixes that are not memoised are looked up there instead of in the directories. */
+    public PathResolver(DirectoryCache directories, long rootCluster, int maxPaths, MetadataIndex index) {
+        this.directories = directories;
+        this.index = index;
+        this.root = new Resolved("/", null, rootCluster);
+        this.maxPaths = maxPaths;
+    }
+
+    public Resolved root() {
+        return root;
+    }
+
+    /**
+     * Resolves {@code path} against the absolute directory {@code cwd}.
+     * Returns null if a component is missing or a non-final component is
+     * not a directory.
+     */
+    public Resolved resolve(String cwd, String path) throws IOException {
+        List<String> components = normalize(path.startsWith("/") ? path : cwd + "/" + path);
+        Resolved current = root;
+        StringBuilder key = new StringBuilder();
+        for (String component : components) {
+            key.append('/').append(component.toUpperCase(Locale.ROOT));
+            Node node = resolved.get(key.toString());
+            Resolved next;
+            if (node != null) {
+                node.lastUsed = clock.getAndIncrement();
+                next = node.value;
+            } else {
+                if (!current.isDirectory()) {
+                    return null;
+                }
+                DirEntry entry;
+                int id = MetadataIndex.ROOT;
+                if (index != null) {
+                    id = index.lookup(current.id, component);
+                    entry = id < 0 ? null : index.entry(id);
+                } else {
+                    entry = directories.get(current.getCluster()).find(component);
+                }
+                if (entry == null) {
+                    return null;
+                }
+                String parent = current == root ? "" : current.getPath();
+                next = new Resolved(parent + "/" + entry.getDisplayName(), entry, entry.getFirstCluster(), id);
+                remember(key.toString(), next);
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    /** Rough heap held by memoised paths, for cache accounting. */
+    public long estimatedBytes() {
+        return resolved.size() * BYTES_PER_PATH;
+    }
+
+    /** Forgets every memoised path, e.g. after the tree has been modified. */
+    public void clear() {
+        resolved.clear();
+    }
+
+    private void remember(String key, Resolved value) {
+        resolved.put(key, new Node(value, clock.getAndIncrement()));
+        if (resolved.size() > maxPaths) {
+            evict(key);
+        }
+    }
+
+    // Trims to 7/8 of the bound so the sort is paid once per maxPaths / 8 inserts
+    private synchronized void evict(String keep) {
+        int target = maxPaths - maxPaths / 8;
+        if (resolved.size() <= target) {
+            return; // another thread got here first
+        }
+        List<Map.Entry<String, Node>> byAge = new ArrayList<>(resolved.entrySet());
+        byAge.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        for (Map.Entry<String, Node> eldest : byAge) {
+            if (resolved.size() <= target) {
+                break;
+            }
+            if (!eldest.getKey().equals(keep)) {
+                resolved.remove(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    /** Splits an absolute path into components, dropping "." and applying "..". */
+    static List<String> normalize(String path) {
+        List<String> components = new ArrayList<>();
+        for (String part : path.split("/")) {
+            String component = part.trim();
+            if (component.isEmpty() || component.equals(".")) {
+                continue;
+            }
+            if (component.equals("..")) {
+                if (!components.isEmpty()) {
+                    components.remove(components.size() - 1);
+                }
+            } else {
+                components.add(component);
+            }
+        }
+        return components;
+    }
+}
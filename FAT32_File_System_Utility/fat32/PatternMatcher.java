@@ -0,0 +1,171 @@
+package fat32;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton over bytes, matching any number of patterns in
+ * one pass. The failure links are folded into a dense 256-way transition
+ * table, so scanning costs one array lookup per byte whatever the number
+ * of patterns. Immutable; the scan state is a plain int the caller carries
+ * from one buffer to the next, so any number of threads can share a matcher.
+ */
+public final class PatternMatcher {
+
+    /** Called for every match, in order of the matches' end offsets. */
+    public interface Listener {
+        void match(int pattern, long start);
+    }
+
+    /** State to start a scan from. */
+    public static final int START = 0;
+
+    private final byte[][] patterns;
+    private final int[] next;       // state * 256 + byte -> state
+    private final int[][] outputs;  // patterns ending at each state, null if none
+    private final int maxLength;
+
+    /**
+     * @param ignoreCase match ASCII letters regardless of case
+     */
+    public PatternMatcher(List<byte[]> patterns, boolean ignoreCase) {
+        if (patterns.isEmpty()) {
+            throw new IllegalArgumentException("No patterns");
+        }
+        this.patterns = new byte[patterns.size()][];
+        int states = 1;
+        int longest = 0;
+        for (int i = 0; i < patterns.size(); i++) {
+            byte[] pattern = patterns.get(i);
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Empty pattern");
+            }
+            this.patterns[i] = ignoreCase ? fold(pattern) : pattern.clone();
+            states += pattern.length;
+            longest = Math.max(longest, pattern.length);
+        }
+        this.maxLength = longest;
+
+        // Trie first, with -1 for missing edges
+        int[] table = new int[states * 256];
+        Arrays.fill(table, -1);
+        List<List<Integer>> found = new ArrayList<>();
+        found.add(new ArrayList<>());
+        int count = 1;
+        for (int i = 0; i < this.patterns.length; i++) {
+            int state = START;
+            for (byte b : this.patterns[i]) {
+                int edge = state * 256 + (b & 0xFF);
+                if (table[edge] < 0) {
+                    table[edge] = count++;
+                    found.add(new ArrayList<>());
+                }
+                state = table[edge];
+            }
+            found.get(state).add(i);
+        }
+
+        // Breadth first, each missing edge takes the failure state's edge
+        int[] fail = new int[count];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < 256; c++) {
+            if (table[c] < 0) {
+                table[c] = START;
+            } else {
+                queue.add(table[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            found.get(state).addAll(found.get(fail[state]));
+            for (int c = 0; c < 256; c++) {
+                int edge = state * 256 + c;
+                int failEdge = table[fail[state] * 256 + c];
+                if (table[edge] < 0) {
+                    table[edge] = failEdge;
+                } else {
+                    fail[table[edge]] = failEdge;
+                    queue.add(table[edge]);
+                }
+            }
+        }
+        if (ignoreCase) {
+            for (int state = 0; state < count; state++) {
+                for (int c = 'a'; c <= 'z'; c++) {
+                    table[state * 256 + c] = table[state * 256 + c - 'a' + 'A'];
+                }
+            }
+        }
+        this.next = Arrays.copyOf(table, count * 256);
+        this.outputs = new int[count][];
+        for (int state = 0; state < count; state++) {
+            List<Integer> ids = found.get(state);
+            if (!ids.isEmpty()) {
+                outputs[state] = ids.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+    }
+
+    public int patternCount() {
+        return patterns.length;
+    }
+
+    /** Length of the longest pattern; a match can start at most this many bytes minus one before a split. */
+    public int maxLength() {
+        return maxLength;
+    }
+
+    public int patternLength(int pattern) {
+        return patterns[pattern].length;
+    }
+
+    /**
+     * Feeds the remaining bytes of {@code buffer}, which start at stream
+     * offset {@code offset}, through the automaton from {@code state}, and
+     * returns the state to continue from. The buffer's position is not moved.
+     */
+    public int scan(ByteBuffer buffer, long offset, int state, Listener listener) {
+        int[] next = this.next;
+        int[][] outputs = this.outputs;
+        int start = buffer.position();
+        int end = buffer.limit();
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int base = buffer.arrayOffset();
+            for (int i = start; i < end; i++) {
+                state = next[state << 8 | (array[base + i] & 0xFF)];
+                if (outputs[state] != null) {
+                    report(outputs[state], offset + (i - start), listener);
+                }
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                state = next[state << 8 | (buffer.get(i) & 0xFF)];
+                if (outputs[state] != null) {
+                    report(outputs[state], offset + (i - start), listener);
+                }
+            }
+        }
+        return state;
+    }
+
+    // `last` is the stream offset of the match's final byte
+    private void report(int[] matched, long last, Listener listener) {
+        for (int pattern : matched) {
+            listener.match(pattern, last - patterns[pattern].length + 1);
+        }
+    }
+
+    private static byte[] fold(byte[] pattern) {
+        byte[] folded = pattern.clone();
+        for (int i = 0; i < folded.length; i++) {
+            if (folded[i] >= 'a' && folded[i] <= 'z') {
+                folded[i] -= 'a' - 'A';
+            }
+        }
+        return folded;
+    }
+}
@@ -0,0 +1,61 @@
+package fat32;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The original seek/read access path, kept as a fallback and for comparison
+ * against the mapped device. Every call is a seek plus a read syscall.
+ */
+public class RandomAccessBlockDevice implements BlockDevice {
+
+    private final RandomAccessFile file;
+
+    public RandomAccessBlockDevice(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public long size() {
+        try {
+            return file.length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void read(long position, ByteBuffer dst) throws IOException {
+        if (position < 0) {
+            throw new EOFException("Position " + position + " is outside the image");
+        }
+        Metrics.increment(Metrics.Counter.DEVICE_READS);
+        Metrics.add(Metrics.Counter.READ_SYSCALLS, 2); // seek, then read
+        Metrics.add(Metrics.Counter.BYTES_READ, dst.remaining());
+        file.seek(position);
+        if (dst.hasArray()) {
+            file.readFully(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.limit());
+        } else {
+            byte[] tmp = new byte[dst.remaining()];
+            file.readFully(tmp);
+            dst.put(tmp);
+        }
+    }
+
+    @Override
+    public ByteBuffer view(long position, int length) throws IOException {
+        length = (int) Math.max(0, Math.min(length, size() - position));
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        read(position, buf);
+        return buf.flip().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
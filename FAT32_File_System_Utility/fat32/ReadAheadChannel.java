@@ -0,0 +1,211 @@
+package fat32;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link ClusterChainChannel} with adaptive read-ahead. Once a few reads
+ * in a row continue where the previous one stopped, the next windows of
+ * the file are fetched on an I/O executor into a small ring of buffers, so
+ * the device works while the caller is busy with the last window. Each
+ * time the caller has to wait for a window the ring gets deeper, up to a
+ * limit. A seek drops the ring and falls back to direct reads. With a
+ * null executor every read goes straight to the source.
+ * Not thread-safe, like the channel it wraps.
+ */
+public class ReadAheadChannel implements SeekableByteChannel {
+
+    public static final int DEFAULT_WINDOW = 256 * 1024;
+    public static final int DEFAULT_MAX_DEPTH = 8;
+
+    // Reads that must continue one another before read-ahead starts
+    private static final int SEQUENTIAL_READS = 2;
+
+    private static class Window {
+        final long start;
+        final ByteBuffer buffer;
+        final Future<Integer> filled;
+
+        Window(long start, ByteBuffer buffer, Future<Integer> filled) {
+            this.start = start;
+            this.buffer = buffer;
+            this.filled = filled;
+        }
+    }
+
+    private final ClusterChainChannel source;
+    private final ExecutorService executor;
+    private final int windowSize;
+    private final int maxDepth;
+    private final ArrayDeque<Window> ring = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> spare = new ArrayDeque<>();
+    private long position;
+    private long nextFetch;     // file offset the next window will start at
+    private int sequential;     // consecutive reads that continued the previous one
+    private int depth = 2;      // windows to keep in flight, grows when the caller waits
+
+    public ReadAheadChannel(ClusterChainChannel source, ExecutorService executor, int windowSize, int maxDepth) {
+        this.source = source;
+        this.executor = executor;
+        this.windowSize = windowSize;
+        this.maxDepth = maxDepth;
+    }
+
+    public ReadAheadChannel(ClusterChainChannel source, ExecutorService executor) {
+        this(source, executor, DEFAULT_WINDOW, DEFAULT_MAX_DEPTH);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!source.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (position >= source.size()) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (executor == null || sequential < SEQUENTIAL_READS) {
+            int n = source.read(dst, position);
+            if (n > 0) {
+                position += n;
+                if (executor != null && ++sequential == SEQUENTIAL_READS) {
+                    nextFetch = position;
+                    fill();
+                }
+            }
+            return n;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < source.size()) {
+            Window window = ring.peek();
+            if (window == null) {
+                fill();
+                window = ring.peek();
+            }
+            if (window == null) {
+                // Nothing left to fetch ahead of a lagging position, read the rest directly
+                int n = source.read(dst, position);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+                total += n;
+                continue;
+            }
+            if (!window.filled.isDone() && depth < maxDepth) {
+                depth++; // the device is behind the caller, keep more windows in flight
+            }
+            int filled = await(window);
+            int offset = (int) (position - window.start);
+            int n = Math.min(dst.remaining(), filled - offset);
+            if (n <= 0) {
+                break; // short window, the file ended early
+            }
+            dst.put(window.buffer.duplicate().position(offset).limit(offset + n));
+            position += n;
+            total += n;
+            if (position >= window.start + filled) {
+                ring.poll();
+                spare.push(window.buffer);
+                fill();
+            }
+        }
+        return total > 0 ? total : -1;
+    }
+
+    // Keeps `depth` windows queued ahead of the caller
+    private void fill() {
+        while (ring.size() < depth && nextFetch < source.size()) {
+            // Heap buffers, so the RAF device can read straight into the array
+            ByteBuffer buffer = spare.isEmpty() ? ByteBuffer.allocate(windowSize) : spare.pop();
+            long start = nextFetch;
+            Future<Integer> filled = executor.submit(() -> {
+                buffer.clear();
+                while (buffer.hasRemaining()) { // a window may span several extents
+                    if (source.read(buffer, start + buffer.position()) <= 0) {
+                        break;
+                    }
+                }
+                return buffer.position();
+            });
+            ring.add(new Window(start, buffer, filled));
+            nextFetch += windowSize;
+        }
+    }
+
+    private static int await(Window window) throws IOException {
+        try {
+            return window.filled.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for read-ahead");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Read-ahead failed", e.getCause());
+        }
+    }
+
+    // In-flight windows may still be writing their buffers, so those are dropped rather than reused
+    private void dropRing() {
+        for (Window window : ring) {
+            window.filled.cancel(false);
+        }
+        ring.clear();
+        sequential = 0;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public ReadAheadChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        if (newPosition != position) {
+            dropRing();
+            position = newPosition;
+        }
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return source.size();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() {
+        dropRing();
+        source.close();
+    }
+}
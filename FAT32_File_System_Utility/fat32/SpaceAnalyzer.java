@@ -0,0 +1,300 @@
+package fat32;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Capacity and fragmentation figures for a volume. Free space comes from
+ * a single pass over the in-memory FAT, split into chunks that are scanned
+ * in parallel and merged; fragmentation comes from walking the tree and
+ * counting the extent runs of every file.
+ */
+public class SpaceAnalyzer {
+
+    private static final int SCAN_CHUNK = 1 << 16;
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    /** Result of {@link #freeSpace()}. */
+    public static class FreeSpace {
+        private final long clusters;
+        private final long free;
+        private final long bad;
+        private final long largestFreeRun;
+        private final long largestFreeRunStart;
+        private final long fsInfoFreeCount;
+        private final long fsInfoNextFree;
+        private final boolean nextFreeIsFree;
+
+        FreeSpace(Span span, VolumeGeometry geometry, FatTable fat) {
+            this.clusters = span.length;
+            this.free = span.free;
+            this.bad = span.bad;
+            this.largestFreeRun = span.longestFree;
+            this.largestFreeRunStart = span.longestFreeStart;
+            this.fsInfoFreeCount = geometry.getFsInfoFreeCount();
+            this.fsInfoNextFree = geometry.getFsInfoNextFree();
+            this.nextFreeIsFree = fsInfoNextFree >= 2 && fsInfoNextFree < fat.size() && fat.get(fsInfoNextFree) == 0;
+        }
+
+        /** Data clusters covered by the FAT. */
+        public long getClusters() {
+            return clusters;
+        }
+
+        public long getFree() {
+            return free;
+        }
+
+        public long getBad() {
+            return bad;
+        }
+
+        public long getUsed() {
+            return clusters - free - bad;
+        }
+
+        /** Length in clusters of the longest run of consecutive free clusters. */
+        public long getLargestFreeRun() {
+            return largestFreeRun;
+        }
+
+        /** First cluster of that run, or -1 if nothing is free. */
+        public long getLargestFreeRunStart() {
+            return largestFreeRunStart;
+        }
+
+        /** Free count recorded in FSInfo, or -1 if it is unknown. */
+        public long getFsInfoFreeCount() {
+            return fsInfoFreeCount;
+        }
+
+        /** True when FSInfo records a free count and it disagrees with the FAT. */
+        public boolean isFsInfoStale() {
+            return fsInfoFreeCount >= 0 && fsInfoFreeCount != free;
+        }
+
+        /** Next-free hint recorded in FSInfo, or -1 if it is unknown. */
+        public long getFsInfoNextFree() {
+            return fsInfoNextFree;
+        }
+
+        /** Whether the next-free hint points at a cluster that is actually free. */
+        public boolean isFsInfoNextFreeValid() {
+            return nextFreeIsFree;
+        }
+    }
+
+    /** Result of {@link #fragmentation(PathResolver.Resolved, int)}. */
+    public static class Fragmentation {
+        private final long files;
+        private final long fragmentedFiles;
+        private final long fragments;
+        private final long[] histogram;
+        private final List<String> worst;
+
+        Fragmentation(long files, long fragmentedFiles, long fragments, long[] histogram, List<String> worst) {
+            this.files = files;
+            this.fragmentedFiles = fragmentedFiles;
+            this.fragments = fragments;
+            this.histogram = histogram;
+            this.worst = worst;
+        }
+
+        /** Non-empty files examined. */
+        public long getFiles() {
+            return files;
+        }
+
+        /** Files stored in more than one run. */
+        public long getFragmentedFiles() {
+            return fragmentedFiles;
+        }
+
+        /** Runs over all files. */
+        public long getFragments() {
+            return fragments;
+        }
+
+        /**
+         * Files by fragment count: bucket 0 holds files in one run, bucket
+         * {@code b} files in 2^(b-1)+1 .. 2^b runs.
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        /** The most fragmented files, worst first, as "path (N fragments)". */
+        public List<String> getWorst() {
+            return worst;
+        }
+
+        /** Label for histogram bucket {@code b}, e.g. "1", "2", "3-4". */
+        public static String bucketLabel(int b) {
+            if (b <= 1) {
+                return String.valueOf(b + 1);
+            }
+            return ((1L << (b - 1)) + 1) + "-" + (1L << b);
+        }
+    }
+
+    private final Fat32Volume volume;
+    private final ForkJoinPool pool;
+
+    public SpaceAnalyzer(Fat32Volume volume, ForkJoinPool pool) {
+        this.volume = volume;
+        this.pool = pool;
+    }
+
+    public SpaceAnalyzer(Fat32Volume volume) {
+        this(volume, ForkJoinPool.commonPool());
+    }
+
+    /** Scans the FAT for free, bad and used clusters and the largest free run. */
+    public FreeSpace freeSpace() {
+        FatTable fat = volume.getFat();
+        Span span = pool.invoke(new ScanTask(fat, 2, fat.size()));
+        return new FreeSpace(span, volume.getGeometry(), fat);
+    }
+
+    /** Counts the runs of every file below {@code start}, keeping the {@code worst} most fragmented. */
+    public Fragmentation fragmentation(PathResolver.Resolved start, int worst) throws IOException {
+        FatTable fat = volume.getFat();
+        LongAdder files = new LongAdder();
+        LongAdder fragmented = new LongAdder();
+        LongAdder fragments = new LongAdder();
+        AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        PriorityQueue<Map.Entry<Integer, String>> top = new PriorityQueue<>(Map.Entry.comparingByKey());
+
+        new TreeWalker(volume, pool).walk(start, (path, entry) -> {
+            if (entry.isDirectory() || entry.getFirstCluster() < 2) {
+                return;
+            }
+            int runs = fat.chain(entry.getFirstCluster()).extentCount();
+            files.increment();
+            fragments.add(runs);
+            if (runs > 1) {
+                fragmented.increment();
+            }
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(runs, 1) - 1L);
+            histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+            if (runs > 1 && worst > 0) {
+                synchronized (top) {
+                    if (top.size() < worst || runs > top.peek().getKey()) {
+                        top.add(new AbstractMap.SimpleImmutableEntry<>(runs, path));
+                        if (top.size() > worst) {
+                            top.poll();
+                        }
+                    }
+                }
+            }
+        });
+
+        List<Map.Entry<Integer, String>> ranked = new ArrayList<>(top);
+        ranked.sort(Map.Entry.<Integer, String>comparingByKey().reversed());
+        List<String> worstFiles = new ArrayList<>();
+        for (Map.Entry<Integer, String> e : ranked) {
+            worstFiles.add(e.getValue() + " (" + e.getKey() + " fragments)");
+        }
+        long[] counts = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return new Fragmentation(files.sum(), fragmented.sum(), fragments.sum(), counts, worstFiles);
+    }
+
+    /** Counts over a range of clusters, mergeable with its right-hand neighbour. */
+    static class Span {
+        long length;
+        long free;
+        long bad;
+        long prefixFree;  // free clusters at the start of the range
+        long suffixFree;  // free clusters at the end of the range
+        long longestFree;
+        long longestFreeStart = -1;
+        long start;
+
+        static Span merge(Span left, Span right) {
+            Span span = new Span();
+            span.start = left.start;
+            span.length = left.length + right.length;
+            span.free = left.free + right.free;
+            span.bad = left.bad + right.bad;
+            span.prefixFree = left.prefixFree == left.length ? left.length + right.prefixFree : left.prefixFree;
+            span.suffixFree = right.suffixFree == right.length ? right.length + left.suffixFree : right.suffixFree;
+            span.longestFree = left.longestFree;
+            span.longestFreeStart = left.longestFreeStart;
+            long joined = left.suffixFree + right.prefixFree;
+            if (joined > span.longestFree) {
+                span.longestFree = joined;
+                span.longestFreeStart = left.start + left.length - left.suffixFree;
+            }
+            if (right.longestFree > span.longestFree) {
+                span.longestFree = right.longestFree;
+                span.longestFreeStart = right.longestFreeStart;
+            }
+            return span;
+        }
+    }
+
+    @SuppressWarnings("serial") // fork-join tasks are never serialized
+    private static class ScanTask extends RecursiveTask<Span> {
+        private final FatTable fat;
+        private final int from;
+        private final int to;
+
+        ScanTask(FatTable fat, int from, int to) {
+            this.fat = fat;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Span compute() {
+            if (to - from > SCAN_CHUNK) {
+                int mid = (from + to) >>> 1;
+                ScanTask right = new ScanTask(fat, mid, to);
+                right.fork();
+                Span left = new ScanTask(fat, from, mid).compute();
+                return Span.merge(left, right.join());
+            }
+            Span span = new Span();
+            span.start = from;
+            span.length = Math.max(0, to - from);
+            long run = 0;
+            boolean leading = true;
+            for (int cluster = from; cluster < to; cluster++) {
+                int value = fat.get(cluster);
+                if (value == 0) {
+                    span.free++;
+                    run++;
+                    if (run > span.longestFree) {
+                        span.longestFree = run;
+                        span.longestFreeStart = cluster - run + 1;
+                    }
+                } else {
+                    if (value == FatTable.BAD_CLUSTER) {
+                        span.bad++;
+                    }
+                    if (leading) {
+                        span.prefixFree = run;
+                        leading = false;
+                    }
+                    run = 0;
+                }
+            }
+            span.suffixFree = run;
+            if (leading) {
+                span.prefixFree = run; // the whole range is free
+            }
+            return span;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package fat32;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recursive traversal of a volume's directory tree on a fork-join pool.
+ * Each subdirectory and each file visit is its own task, so both deep
+ * trees and wide directories spread across the pool's threads.
+ * Directories are decoded straight from the image rather than through the
+ * volume's cache, so a full walk does not evict the working set.
+ */
+public class TreeWalker {
+
+    /** Called once per entry, possibly from several threads at once. */
+    public interface Visitor {
+        void visit(String path, DirEntry entry) throws IOException;
+    }
+
+    private final Fat32Volume volume;
+    private final ForkJoinPool pool;
+
+    public TreeWalker(Fat32Volume volume, ForkJoinPool pool) {
+        this.volume = volume;
+        this.pool = pool;
+    }
+
+    public TreeWalker(Fat32Volume volume) {
+        this(volume, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Visits every entry below {@code start}, a resolved directory, and
+     * returns how many entries were visited. A directory is visited before
+     * its contents; there is no other ordering guarantee.
+     */
+    public long walk(PathResolver.Resolved start, Visitor visitor) throws IOException {
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        LongAdder visited = new LongAdder();
+        String path = start.getPath().equals("/") ? "" : start.getPath();
+        try {
+            pool.invoke(new DirectoryTask(path, start.getCluster(), visitor, seen, visited));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return visited.sum();
+    }
+
+    @SuppressWarnings("serial") // fork-join tasks are never serialized
+    private class DirectoryTask extends RecursiveAction {
+        private final String path;
+        private final long cluster;
+        private final Visitor visitor;
+        private final Set<Long> seen;
+        private final LongAdder visited;
+
+        DirectoryTask(String path, long cluster, Visitor visitor, Set<Long> seen, LongAdder visited) {
+            this.path = path;
+            this.cluster = cluster;
+            this.visitor = visitor;
+            this.seen = seen;
+            this.visited = visited;
+        }
+
+        @Override
+        protected void compute() {
+            // A damaged image can link a directory back to an ancestor; walk each one once
+            if (!seen.add(cluster)) {
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<>();
+            try {
+                for (DirEntry entry : volume.readDirectory(cluster).getEntries()) {
+                    String name = entry.getDisplayName();
+                    if (name.equals(".") || name.equals("..")) {
+                        continue;
+                    }
+                    String childPath = path + "/" + name;
+                    if (entry.isDirectory()) {
+                        // Visit the directory itself first so e.g. an extractor can create it
+                        visitor.visit(childPath, entry);
+                        visited.increment();
+                        if (entry.getFirstCluster() >= 2) {
+                            tasks.add(new DirectoryTask(childPath, entry.getFirstCluster(), visitor, seen, visited));
+                        }
+                    } else {
+                        tasks.add(new VisitTask(childPath, entry, visitor, visited));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class VisitTask extends RecursiveAction {
+        private final String path;
+        private final DirEntry entry;
+        private final Visitor visitor;
+        private final LongAdder visited;
+
+        VisitTask(String path, DirEntry entry, Visitor visitor, LongAdder visited) {
+            this.path = path;
+            this.entry = entry;
+            this.visitor = visitor;
+            this.visited = visited;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                visitor.visit(path, entry);
+                visited.increment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package fat32;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * BPB and FSInfo fields, parsed and validated once when the image is
+ * opened, with every derived offset precomputed as a long. Immutable, so
+ * it can be shared between threads.
+ */
+public final class VolumeGeometry {
+
+    private static final int FSINFO_LEAD_SIGNATURE = 0x41615252;
+    private static final int FSINFO_STRUCT_SIGNATURE = 0x61417272;
+
+    private final int bytesPerSector;
+    private final int sectorsPerCluster;
+    private final int reservedSectors;
+    private final int numberOfFats;
+    private final long fatSizeSectors;
+    private final long rootCluster;
+    private final long totalSectors;
+    private final int fsInfoSector;
+    private final int backupBootSector;
+    private final long fsInfoFreeCount;   // -1 when unknown
+    private final long fsInfoNextFree;    // -1 when unknown
+    private final String volumeLabel;
+
+    private final long fatOffset;
+    private final long fatBytes;
+    private final long dataOffset;
+    private final int clusterShift;
+    private final long clusterBytes;
+    private final long clusterCount;
+
+    private VolumeGeometry(ByteBuffer boot, ByteBuffer fsInfo) throws IOException {
+        bytesPerSector = boot.getShort(0x0B) & 0xFFFF;
+        sectorsPerCluster = boot.get(0x0D) & 0xFF;
+        reservedSectors = boot.getShort(0x0E) & 0xFFFF;
+        numberOfFats = boot.get(0x10) & 0xFF;
+        long totalSectors16 = boot.getShort(0x13) & 0xFFFF;
+        fatSizeSectors = boot.getInt(0x24) & 0xFFFFFFFFL;
+        rootCluster = boot.getInt(0x2C) & 0xFFFFFFFFL;
+        fsInfoSector = boot.getShort(0x30) & 0xFFFF;
+        backupBootSector = boot.getShort(0x32) & 0xFFFF;
+        totalSectors = totalSectors16 != 0 ? totalSectors16 : boot.getInt(0x20) & 0xFFFFFFFFL;
+        byte[] label = new byte[11];
+        boot.get(0x47, label);
+        volumeLabel = new String(label, StandardCharsets.US_ASCII).trim();
+
+        if (Integer.bitCount(bytesPerSector) != 1 || bytesPerSector < 512 || bytesPerSector > 4096) {
+            throw new IOException("Not a FAT32 image: BPB_BytesPerSec is " + bytesPerSector);
+        }
+        if (Integer.bitCount(sectorsPerCluster) != 1) {
+            throw new IOException("Not a FAT32 image: BPB_SecPerClus is " + sectorsPerCluster);
+        }
+        if (numberOfFats == 0 || fatSizeSectors == 0 || rootCluster < 2) {
+            throw new IOException("Not a FAT32 image: BPB_NumFATS=" + numberOfFats
+                    + ", BPB_FATSz32=" + fatSizeSectors + ", BPB_RootClus=" + rootCluster);
+        }
+
+        fatOffset = (long) reservedSectors * bytesPerSector;
+        fatBytes = fatSizeSectors * bytesPerSector;
+        dataOffset = fatOffset + numberOfFats * fatBytes;
+        clusterShift = Integer.numberOfTrailingZeros(bytesPerSector) + Integer.numberOfTrailingZeros(sectorsPerCluster);
+        clusterBytes = 1L << clusterShift;
+        long dataSectors = totalSectors - dataOffset / bytesPerSector;
+        clusterCount = Math.max(0, dataSectors / sectorsPerCluster);
+
+        if (fsInfo != null && fsInfo.getInt(0) == FSINFO_LEAD_SIGNATURE && fsInfo.getInt(484) == FSINFO_STRUCT_SIGNATURE) {
+            long free = fsInfo.getInt(488) & 0xFFFFFFFFL;
+            long next = fsInfo.getInt(492) & 0xFFFFFFFFL;
+            fsInfoFreeCount = free == 0xFFFFFFFFL ? -1 : free;
+            fsInfoNextFree = next == 0xFFFFFFFFL ? -1 : next;
+        } else {
+            fsInfoFreeCount = -1;
+            fsInfoNextFree = -1;
+        }
+    }
+
+    /** Reads the boot sector and FSInfo sector of {@code device}. */
+    public static VolumeGeometry read(BlockDevice device) throws IOException {
+        ByteBuffer boot = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        device.read(0, boot);
+        int bytesPerSector = boot.getShort(0x0B) & 0xFFFF;
+        int fsInfoSector = boot.getShort(0x30) & 0xFFFF;
+        ByteBuffer fsInfo = null;
+        if (fsInfoSector != 0 && fsInfoSector != 0xFFFF && bytesPerSector >= 512
+                && (long) (fsInfoSector + 1) * bytesPerSector <= device.size()) {
+            fsInfo = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+            device.read((long) fsInfoSector * bytesPerSector, fsInfo);
+        }
+        return new VolumeGeometry(boot, fsInfo);
+    }
+
+    /** Parses an already loaded boot sector; {@code fsInfo} may be null. */
+    public static VolumeGeometry parse(ByteBuffer bootSector, ByteBuffer fsInfo) throws IOException {
+        return new VolumeGeometry(bootSector.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+                fsInfo == null ? null : fsInfo.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /** Byte offset of {@code cluster} in the image. */
+    public long clusterOffset(long cluster) {
+        return dataOffset + ((cluster - 2) << clusterShift);
+    }
+
+    public int getBytesPerSector() {
+        return bytesPerSector;
+    }
+
+    public int getSectorsPerCluster() {
+        return sectorsPerCluster;
+    }
+
+    public int getReservedSectors() {
+        return reservedSectors;
+    }
+
+    public int getNumberOfFats() {
+        return numberOfFats;
+    }
+
+    public long getFatSizeSectors() {
+        return fatSizeSectors;
+    }
+
+    public long getRootCluster() {
+        return rootCluster;
+    }
+
+    public long getTotalSectors() {
+        return totalSectors;
+    }
+
+    public int getFsInfoSector() {
+        return fsInfoSector;
+    }
+
+    public int getBackupBootSector() {
+        return backupBootSector;
+    }
+
+    /** Free cluster count recorded in FSInfo, or -1 if it is unknown. */
+    public long getFsInfoFreeCount() {
+        return fsInfoFreeCount;
+    }
+
+    /** Next free cluster hint recorded in FSInfo, or -1 if it is unknown. */
+    public long getFsInfoNextFree() {
+        return fsInfoNextFree;
+    }
+
+    public String getVolumeLabel() {
+        return volumeLabel;
+    }
+
+    /** Byte offset of the first FAT. */
+    public long getFatOffset() {
+        return fatOffset;
+    }
+
+    /** Size of one FAT in bytes. */
+    public long getFatBytes() {
+        return fatBytes;
+    }
+
+    /** Byte offset of cluster 2, the start of the data region. */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    public long getClusterBytes() {
+        return clusterBytes;
+    }
+
+    public int getClusterShift() {
+        return clusterShift;
+    }
+
+    /** Number of data clusters; valid cluster numbers are 2 to clusterCount + 1. */
+    public long getClusterCount() {
+        return clusterCount;
+    }
+}
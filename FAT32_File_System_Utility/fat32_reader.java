@@ -1,14 +1,41 @@
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import fat32.BlockDevice;
+import fat32.CompressedBlockDevice;
+import fat32.ContentSearch;
+import fat32.DirEntry;
+import fat32.Directory;
+import fat32.Extractor;
+import fat32.ImagePool;
+import fat32.Fat32Server;
+import fat32.Fat32Session;
+import fat32.Fat32Volume;
+import fat32.Metrics;
+import fat32.PathResolver;
+import fat32.PatternMatcher;
+import fat32.ReadAheadChannel;
+import fat32.SpaceAnalyzer;
+import fat32.TreeWalker;
 
 public class fat32_reader {
 
-    private static Stack<Long> pathStack = new Stack<>(); // To handle navigation, especially for ".."
-    private static String currentPath = "/";
-    private static long currentCluster = 2;
+    // read streams through these so its memory use does not depend on NUM_BYTES
+    private static final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private static final CharBuffer readChars = CharBuffer.allocate(64 * 1024);
+    private static final CharsetDecoder asciiDecoder = StandardCharsets.US_ASCII.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
     private static Field BPB_BytesPerSec = new Field("BPB_BytesPerSec", 0x0B, 2);
     private static Field BPB_SecPerClus = new Field("BPB_SecPerClus", 0x0D, 1);
     private static Field BPB_RsvdSecCnt = new Field("BPB_RsvdSecCnt", 0x0E, 2);
@@ -46,25 +73,96 @@ public class fat32_reader {
         }
     }
 
+    // Batch mode reads this many commands ahead to plan which directories to decode
+    private static final int BATCH_CHUNK = 4096;
+
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java fat32_reader <FAT32 image file>");
+            System.out.println("Usage: java fat32_reader <FAT32 image file> [--io=mmap|channel|raf] [--dir-cache-mb=N] [--batch=<command file>|-] [--index[=<index file>]] [--metrics] [--write] [--pack=<container file>] [--serve=<port> [<more image files>] [--memory-mb=N]]");
             return;
         }
 
         String filePath = args[0];
-        try (RandomAccessFile file = new RandomAccessFile(filePath, "r");
-             Scanner scanner = new Scanner(System.in)) {
+        BlockDevice.Mode mode = BlockDevice.Mode.MMAP;
+        long dirCacheBytes = Fat32Volume.DEFAULT_DIR_CACHE_BYTES;
+        String batchFile = null;
+        Path indexFile = null;
+        boolean writable = false;
+        Path packFile = null;
+        int servePort = -1;
+        long memoryBytes = 256L << 20;
+        List<String> moreImages = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--io=raf")) {
+                mode = BlockDevice.Mode.RAF; // plain seek/read, for comparison
+            } else if (args[i].equals("--io=channel")) {
+                mode = BlockDevice.Mode.CHANNEL; // positional FileChannel reads
+            } else if (args[i].startsWith("--dir-cache-mb=")) {
+                dirCacheBytes = Long.parseLong(args[i].substring("--dir-cache-mb=".length())) << 20;
+            } else if (args[i].startsWith("--batch=")) {
+                batchFile = args[i].substring("--batch=".length()); // "-" reads commands from stdin
+            } else if (args[i].startsWith("--pack=")) {
+                packFile = Paths.get(args[i].substring("--pack=".length())); // compress the image and exit
+            } else if (args[i].startsWith("--serve=")) {
+                servePort = Integer.parseInt(args[i].substring("--serve=".length()));
+            } else if (args[i].startsWith("--memory-mb=")) {
+                memoryBytes = Long.parseLong(args[i].substring("--memory-mb=".length())) << 20; // shared by all served images
+            } else if (!args[i].startsWith("--")) {
+                moreImages.add(args[i]); // only the server takes more than one image
+            } else if (args[i].equals("--write")) {
+                writable = true; // mkdir, touch, write, append, rm and sync become available
+            } else if (args[i].equals("--metrics")) {
+                Metrics.setEnabled(true);
+            } else if (args[i].equals("--index")) {
+                indexFile = Paths.get(filePath + ".idx"); // sidecar next to the image
+            } else if (args[i].startsWith("--index=")) {
+                indexFile = Paths.get(args[i].substring("--index=".length()));
+            } else if (!args[i].equals("--io=mmap")) {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        if (packFile != null) {
+            pack(filePath, packFile);
+            return;
+        }
+        if (!moreImages.isEmpty() && servePort < 0) {
+            System.out.println("Unknown option: " + moreImages.get(0));
+            return;
+        }
+        if (writable && indexFile != null) {
+            System.out.println("--index cannot be combined with --write, the index would go stale");
+            return;
+        }
+        if (Metrics.isEnabled()) {
+            registerMetrics();
+        }
+        if (servePort >= 0) {
+            moreImages.add(0, filePath);
+            serve(moreImages, mode, memoryBytes, servePort);
+            return;
+        }
+        try (Fat32Volume volume = writable
+                ? Fat32Volume.openWritable(filePath, mode, dirCacheBytes)
+                : Fat32Volume.open(filePath, mode, dirCacheBytes, indexFile)) {
 
             ByteBuffer bootSector = ByteBuffer.allocate(512);
-            file.readFully(bootSector.array());
+            volume.getDevice().read(0, bootSector);
             bootSector.order(ByteOrder.LITTLE_ENDIAN);
 
-            String command;
-            while (true) {
-                System.out.print(currentPath + "] ");
-                command = scanner.nextLine();
-                processCommand(command, bootSector, file, scanner);
+            Fat32Session session = volume.newSession();
+            if (batchFile != null) {
+                batch(batchFile, bootSector, session);
+                return;
+            }
+            try (Scanner scanner = new Scanner(System.in)) {
+                String command;
+                while (true) {
+                    System.out.print(session.getPath() + "] ");
+                    command = scanner.nextLine();
+                    processCommand(command, bootSector, session, scanner, System.out);
+                    sync(volume, System.out); // interactive changes are durable once the prompt returns
+                }
             }
 
         } catch (FileNotFoundException e) {
@@ -74,47 +172,226 @@ public class fat32_reader {
         }
     }
 
+    // Serves every image under its file name until the process is killed
+    private static void serve(List<String> images, BlockDevice.Mode mode, long memoryBytes, int port) {
+        Map<String, String> paths = new LinkedHashMap<>();
+        for (String image : images) {
+            String name = new File(image).getName();
+            paths.put(paths.containsKey(name) ? image : name, image);
+        }
+        try (ImagePool pool = new ImagePool(paths, mode, memoryBytes);
+             Fat32Server server = new Fat32Server(pool, port)) {
+            System.out.println("Serving " + String.join(", ", paths.keySet()) + " on 127.0.0.1:" + server.getPort());
+            server.serve();
+        } catch (IOException e) {
+            System.out.println("IO Error: " + e.getMessage());
+        }
+    }
+
+    // Writes the image as a compressed container that can be opened in its place
+    private static void pack(String filePath, Path packFile) {
+        try {
+            long packed = CompressedBlockDevice.pack(Paths.get(filePath), packFile, CompressedBlockDevice.DEFAULT_CHUNK_SIZE);
+            long size = new File(filePath).length();
+            System.out.printf("Packed %d bytes into %d bytes (%.1f%%)%n", size, packed, size == 0 ? 0.0 : 100.0 * packed / size);
+        } catch (IOException e) {
+            System.out.println("Error packing image: " + e.getMessage());
+        }
+    }
 
-    private static void processCommand(String commandLine, ByteBuffer bootSector, RandomAccessFile file, Scanner scanner) {
+    // Runs a command script without prompts, writing results through one large buffer
+    private static void batch(String batchFile, ByteBuffer bootSector, Fat32Session session) throws IOException {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 20), false);
+        try (BufferedReader in = batchFile.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in), 1 << 16)
+                : new BufferedReader(new FileReader(batchFile), 1 << 16)) {
+            List<String> chunk = new ArrayList<>(BATCH_CHUNK);
+            String line;
+            boolean more = true;
+            while (more) {
+                chunk.clear();
+                while (chunk.size() < BATCH_CHUNK && (line = in.readLine()) != null) {
+                    chunk.add(line);
+                }
+                more = chunk.size() == BATCH_CHUNK;
+                prefetchDirectories(chunk, session);
+                for (String command : chunk) {
+                    processCommand(command, bootSector, session, null, out);
+                }
+                sync(session.getVolume(), out); // one journal commit per chunk
+            }
+        } finally {
+            out.flush();
+        }
+    }
+
+    // Decodes each directory the chunk will touch once, in path order, before any command runs.
+    // A scratch session follows the chunk's cd commands so relative names resolve as they will later.
+    private static void prefetchDirectories(List<String> chunk, Fat32Session session) {
+        Fat32Session scout = session.getVolume().newSession();
+        Set<String> directories = new TreeSet<>();
+        try {
+            scout.cd(session.getPath());
+            for (String commandLine : chunk) {
+                String[] parts = commandLine.split(" ", 2);
+                String argument = parts.length > 1 ? parts[1] : "";
+                String target;
+                switch (parts[0]) {
+                    case "cd":
+                        if (!argument.isEmpty()) {
+                            scout.cd(argument.toUpperCase());
+                        }
+                        continue;
+                    case "ls":
+                        directories.add(scout.getPath());
+                        continue;
+                    case "stat":
+                    case "size":
+                        target = argument;
+                        break;
+                    case "read":
+                        String[] readArgs = splitReadArgs(argument);
+                        if (readArgs == null) {
+                            continue;
+                        }
+                        target = readArgs[0];
+                        break;
+                    default:
+                        continue;
+                }
+                // Only the directory holding the target has to be scanned
+                int slash = target.lastIndexOf('/');
+                String parent = slash < 0 ? "" : target.substring(0, slash + 1);
+                directories.add(parent.startsWith("/") ? parent : scout.getPath() + "/" + parent);
+            }
+            for (String directory : directories) {
+                PathResolver.Resolved resolved = scout.resolve(directory);
+                if (resolved != null && resolved.isDirectory()) {
+                    session.getVolume().directory(resolved.getCluster());
+                }
+            }
+        } catch (IOException e) {
+            // Only a warm-up, the commands themselves report the error
+        }
+    }
+
+
+    private static void processCommand(String commandLine, ByteBuffer bootSector, Fat32Session session, Scanner scanner, PrintStream out) {
         String[] parts = commandLine.split(" ", 2); // Splits the command from the arguments
         String command = parts[0];
         String argument = parts.length > 1 ? parts[1] : "";
+        long started = Metrics.start();
         switch (command) {
             case "stop":
-                stop(file, scanner);
+                stop(session.getVolume(), scanner, out);
                 break;
             case "info":
-                info(bootSector);
+                info(bootSector, out);
                 break;
             case "ls":
-                ls(file, bootSector);
+                ls(session, out);
                 break;
             case "stat":
-                stat(file, bootSector, argument);
+                stat(session, argument, out);
                 break;
             case "size":
-                size(file, bootSector, argument);
+                size(session, argument, out);
                 break;
             case "cd":
-                cd(file, bootSector, argument);
+                cd(session, argument, out);
                 break;
             case "read":
-                String[] readParts = argument.split(" ");
-                String readFileName = readParts[0];
-                int readOffset = Integer.parseInt(readParts[1]);
-                int readNumBytes = Integer.parseInt(readParts[2]);
-                read(file, bootSector, readFileName, readOffset, readNumBytes);
+                String[] readArgs = splitReadArgs(argument);
+                if (readArgs == null) {
+                    out.println("Usage: read <FILE_NAME> <OFFSET> <NUM_BYTES>");
+                    break;
+                }
+                long offset;
+                long numBytes;
+                try {
+                    offset = Long.parseLong(readArgs[1]);
+                    numBytes = Long.parseLong(readArgs[2]);
+                } catch (NumberFormatException e) {
+                    out.println("Error: OFFSET and NUM_BYTES must be numbers");
+                    out.println("Usage: read <FILE_NAME> <OFFSET> <NUM_BYTES>");
+                    break;
+                }
+                read(session, readArgs[0], offset, numBytes, out);
+                break;
+            case "space":
+                space(session, argument.trim(), out);
+                break;
+            case "walk":
+                walk(session, argument.trim(), out);
+                break;
+            case "extract":
+                // HOST_DIR is the last word, the image path before it may contain spaces
+                String extractArgs = argument.trim();
+                int hostDirStart = extractArgs.lastIndexOf(' ');
+                if (hostDirStart < 0) {
+                    out.println("Usage: extract <PATH> <HOST_DIR>");
+                    break;
+                }
+                extract(session, extractArgs.substring(0, hostDirStart).trim(), extractArgs.substring(hostDirStart + 1), out);
                 break;
+            case "grep":
+                grep(session, argument.trim(), out);
+                break;
+            case "mkdir":
+                mkdir(session, argument.trim(), out);
+                break;
+            case "touch":
+                touch(session, argument.trim(), out);
+                break;
+            case "write":
+            case "append":
+                // HOST_FILE is the last word, like extract's HOST_DIR
+                String writeArgs = argument.trim();
+                int hostFileStart = writeArgs.lastIndexOf(' ');
+                if (hostFileStart < 0) {
+                    out.println("Usage: " + command + " <FILE_NAME> <HOST_FILE>");
+                    break;
+                }
+                write(session, writeArgs.substring(0, hostFileStart).trim(), writeArgs.substring(hostFileStart + 1),
+                        command.equals("append"), out);
+                break;
+            case "rm":
+                rm(session, argument.trim(), out);
+                break;
+            case "sync":
+                sync(session.getVolume(), out);
+                break;
+            case "metrics":
+                metrics(argument.trim(), out);
+                return; // not timed, it would only measure itself
             default:
-                System.out.println("Unknown command");
+                out.println("Unknown command");
+                return;
+        }
+        Metrics.recordCommand(command, started);
+    }
+
+    // OFFSET and NUM_BYTES are the last two words, long names may contain spaces
+    private static String[] splitReadArgs(String argument) {
+        String readArgs = argument.trim();
+        int numBytesStart = readArgs.lastIndexOf(' ');
+        int offsetStart = numBytesStart < 0 ? -1 : readArgs.substring(0, numBytesStart).trim().lastIndexOf(' ');
+        if (offsetStart < 0) {
+            return null;
         }
+        return new String[] {
+                readArgs.substring(0, offsetStart).trim(),
+                readArgs.substring(offsetStart, numBytesStart).trim(),
+                readArgs.substring(numBytesStart).trim()
+        };
     }
 
-    public static void stop(RandomAccessFile file, Scanner scanner) {
+    public static void stop(Fat32Volume volume, Scanner scanner, PrintStream out) {
         try {
+            out.flush(); // batch output is buffered, write it out before exiting
             //System.out.println("Stopping the FAT32 utility"); // is this correct?
-            if (file != null) {
-                file.close(); // Ensure the file is closed properly
+            if (volume != null) {
+                volume.close(); // Ensure the file is closed properly
             }
             if (scanner != null) {
                 scanner.close(); // Close the scanner
@@ -127,12 +404,12 @@ public class fat32_reader {
     }
 
 
-    public static void info(ByteBuffer bootSector) {
-        System.out.println(getFieldInfo(bootSector, BPB_BytesPerSec));
-        System.out.println(getFieldInfo(bootSector, BPB_SecPerClus));
-        System.out.println(getFieldInfo(bootSector, BPB_RsvdSecCnt));
-        System.out.println(getFieldInfo(bootSector, BPB_NumFATS));
-        System.out.println(getFieldInfo(bootSector, BPB_FATSz32));
+    public static void info(ByteBuffer bootSector, PrintStream out) {
+        out.println(getFieldInfo(bootSector, BPB_BytesPerSec));
+        out.println(getFieldInfo(bootSector, BPB_SecPerClus));
+        out.println(getFieldInfo(bootSector, BPB_RsvdSecCnt));
+        out.println(getFieldInfo(bootSector, BPB_NumFATS));
+        out.println(getFieldInfo(bootSector, BPB_FATSz32));
     }
 
     private static String getFieldInfo(ByteBuffer bootSector, Field field) {
@@ -141,130 +418,52 @@ public class fat32_reader {
     }
 
     private static int getFieldValue(ByteBuffer bootSector, Field field) {
-        bootSector.position(field.getOffset());
+        // Absolute gets, so the shared buffer's position is never touched
         if (field.getSize() == 1) {
-            return bootSector.get() & 0xFF;  // Unsigned byte
+            return bootSector.get(field.getOffset()) & 0xFF;  // Unsigned byte
         } else if (field.getSize() == 2) {
-            return bootSector.getShort() & 0xFFFF;  // Unsigned short
+            return bootSector.getShort(field.getOffset()) & 0xFFFF;  // Unsigned short
         } else if (field.getSize() == 4) {
-            return bootSector.getInt();  // Integer
+            return bootSector.getInt(field.getOffset());  // Integer
         }
         return -1;  // Error case, handle appropriately
     }
 
-    public static void ls(RandomAccessFile file, ByteBuffer bootSector) {
+    public static void ls(Fat32Session session, PrintStream out) {
         try {
-            int bytesPerSector = getFieldValue(bootSector, BPB_BytesPerSec);
-            int sectorsPerCluster = getFieldValue(bootSector, BPB_SecPerClus);
-            int reservedSectors = getFieldValue(bootSector, BPB_RsvdSecCnt);
-            int numberOfFats = getFieldValue(bootSector, BPB_NumFATS);
-            int fatSize = getFieldValue(bootSector, BPB_FATSz32);
-
-            long rootDirSect = reservedSectors + (numberOfFats * fatSize) + (currentCluster - 2) * sectorsPerCluster;
-            file.seek(rootDirSect * bytesPerSector);
-
-            byte[] dirEntry = new byte[32];
-            List<String> entries = new ArrayList<>();
+            Directory directory = session.list();
+            // Sorted and de-duplicated as names are added
+            Set<String> entries = new TreeSet<>();
 
             // Add entry for current directory
             entries.add(".");
             // Add entry for parent directory
             entries.add("..");
 
-            while (file.read(dirEntry) == 32) {
-                if (dirEntry[0] == 0x00) break;  // End of directory
-                if (dirEntry[0] == 0xE5) continue;  // Skip deleted entries
-
-                String extractedName = extractName(dirEntry);
-                if (!extractedName.isEmpty() && !entries.contains(extractedName)) {
-                    entries.add(extractedName);
-                }
+            for (DirEntry entry : directory.getEntries()) {
+                entries.add(entry.getDisplayName());
             }
 
-            Collections.sort(entries);
             for (String entry : entries) {
-                System.out.print(entry + " ");
+                out.print(entry + " ");
             }
-            System.out.println();
+            out.println();
         } catch (IOException e) {
-            System.out.println("Error reading directory: " + e.getMessage());
-        }
-    }
-
-
-
-    private static String extractName(byte[] entry) {
-        int attr = entry[11] & 0xFF; // Extract the attribute byte
-
-        // Skip entries with the volume attribute
-        if ((attr & 0x08) != 0) {
-            return "";
-        }
-
-        // Skip entries based on specific attributes: system, hidden, LFN, or deleted entries
-        if ((attr & 0x02) != 0 || (attr & 0x04) != 0 || (attr == 0x0F) || (entry[0] == 0xE5) || (entry[0] == 0x00)) {
-            return "";
-        }
-
-        // Extract base name and extension, ensuring they are printable characters
-        String rawName = new String(entry, 0, 8, StandardCharsets.US_ASCII).trim();
-        String rawExt = new String(entry, 8, 3, StandardCharsets.US_ASCII).trim();
-
-        // Check for non-printable characters and filter out names accordingly
-        if (rawName.matches(".*[^\\x20-\\x7E]+.*")) {
-            return "";
-        }
-
-        StringBuilder fullName = new StringBuilder(rawName);
-        if (!rawExt.isEmpty() && !rawExt.matches(".*[^\\x20-\\x7E]+.*")) {
-            fullName.append(".").append(rawExt);
+            out.println("Error reading directory: " + e.getMessage());
         }
-
-        return fullName.toString().toUpperCase();
     }
 
 
-    public static void stat(RandomAccessFile file, ByteBuffer bootSector, String name) {
+    public static void stat(Fat32Session session, String name, PrintStream out) {
         try {
-            int bytesPerSector = getFieldValue(bootSector, BPB_BytesPerSec);
-            int sectorsPerCluster = getFieldValue(bootSector, BPB_SecPerClus);
-            int reservedSectors = getFieldValue(bootSector, BPB_RsvdSecCnt);
-            int numberOfFats = getFieldValue(bootSector, BPB_NumFATS);
-            int fatSize = getFieldValue(bootSector, BPB_FATSz32);
-
-            // Compute the first sector of the root directory
-            int rootDirSector = reservedSectors + (numberOfFats * fatSize);
-            long rootDirOffset = rootDirSector * bytesPerSector;
-
-            file.seek(rootDirOffset);
-            byte[] entry = new byte[32];
-            boolean found = false;
-
-            while (file.read(entry) == 32) {
-                if (entry[0] == 0x00) break; // End of directory entries
-                if (entry[0] == 0xE5) continue; // Skip deleted entries
-
-                String entryName = extractName(entry);
-                if (entryName.equalsIgnoreCase(name)) {
-                    found = true;
-                    long firstClusterHigh = parseBytesToNumeric(entry, 20, 2);
-                    //int firstClusterHigh = ByteBuffer.wrap(entry, 20, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xffff;
-                    long firstClusterLow = parseBytesToNumeric(entry, 26, 2);
-                    //int firstClusterLow = ByteBuffer.wrap(entry, 26, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xffff;
-                    long nextCluster = (firstClusterHigh << 16) + firstClusterLow;
-
-
-                    //int nextCluster = getNextClusterNumber(file, bootSector, firstCluster);
-                    displayStatInfo(nextCluster, entry);
-                    break;
-                }
-            }
-
-            if (!found) {
-                System.out.println("Error: file/directory does not exist");
+            PathResolver.Resolved resolved = session.resolve(name);
+            if (resolved == null || resolved.getEntry() == null) {
+                out.println("Error: file/directory does not exist");
+                return;
             }
+            displayStatInfo(resolved.getCluster(), resolved.getEntry(), out);
         } catch (IOException e) {
-            System.out.println("Error accessing file: " + e.getMessage());
+            out.println("Error accessing file: " + e.getMessage());
         }
     }
 
@@ -272,42 +471,23 @@ public class fat32_reader {
         return String.format("0x%0"+padding+"X", val);
     }
 
-    private static long parseBytesToNumeric(byte[] b, int offset, int len) {
-        if (len > 7) System.out.println("WARNING. Attempted parseBytesToNumeric(byte[] b) for bytes=" + len + ". Returned signed long may overflow.");
-        long ret = 0;
-        for (int place = 0; place < len; place++)
-            ret += (b[place + offset] & 0xFF)*Math.pow(256,place); //Properly read byte: unsigned_value * 256^place_in_endian_order. Use `& 0xFF` to force Java to treat as raw bits and then cast to larger data type
-        return ret;
-    }
-
-    private static void displayStatInfo(long nextCluster, byte[] entry) {
+    private static void displayStatInfo(long nextCluster, DirEntry entry, PrintStream out) {
         try {
-            long size = ByteBuffer.wrap(entry, 28, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
-            String attributes = getAttributes(entry[11]);
+            long size = entry.getSize();
+            String attributes = getAttributes((byte) entry.getAttributes());
 
-            System.out.println("Size is " + size);
-            System.out.println("Attributes " + attributes);
-            System.out.println("Next cluster number is " + printHex(nextCluster, 8));
+            out.println("Size is " + size);
+            out.println("Attributes " + attributes);
+            out.println("Next cluster number is " + printHex(nextCluster, 8));
         } catch (Exception e) {
-            System.out.println("Error displaying file information: " + e.getMessage());
+            out.println("Error displaying file information: " + e.getMessage());
         }
     }
 
 
-    public static long getNextClusterNumber(RandomAccessFile file, ByteBuffer bootSector, long currentCluster) throws IOException {
-        int bytesPerSector = getFieldValue(bootSector, BPB_BytesPerSec);
-        int fatOffset = getFieldValue(bootSector, BPB_RsvdSecCnt) * bytesPerSector;
-        int fatEntrySize = 4; // Each entry in FAT32 is 4 bytes
-        long fatEntryPosition = fatOffset + (long) currentCluster * fatEntrySize;
-
-        file.seek(fatEntryPosition);
-        long nextCluster = file.readInt() & 0x0FFFFFFF; // Mask to ignore the high 4 bits
-
-        // Check if the cluster is an end-of-chain marker
-        if (nextCluster >= 0x0FFFFFF8) {
-            return -1; // Signal to stop reading more clusters
-        }
-        return nextCluster;
+    public static long getNextClusterNumber(Fat32Volume volume, long currentCluster) {
+        // Answered from the in-memory FAT, -1 once the chain ends
+        return volume.getFat().next(currentCluster);
     }
 
 
@@ -325,55 +505,21 @@ public class fat32_reader {
         return attrDesc.toString().trim();
     }
 
-    public static void size(RandomAccessFile file, ByteBuffer bootSector, String fileName) {
+    public static void size(Fat32Session session, String fileName, PrintStream out) {
         try {
-            int bytesPerSector = getFieldValue(bootSector, BPB_BytesPerSec);
-            int sectorsPerCluster = getFieldValue(bootSector, BPB_SecPerClus);
-            int reservedSectors = getFieldValue(bootSector, BPB_RsvdSecCnt);
-            int numberOfFats = getFieldValue(bootSector, BPB_NumFATS);
-            int fatSize = getFieldValue(bootSector, BPB_FATSz32);
-
-
-            // Compute the first sector of the root directory
-            long rootDirOffset = (reservedSectors + (numberOfFats * fatSize)) * bytesPerSector;
-
-            file.seek(rootDirOffset);
-            byte[] entry = new byte[32];
-            boolean found = false;
-
-            while (file.read(entry) == 32) {
-
-                if (entry[0] == 0x00) {
-                    break; // End of directory entries
-                }
-                if (entry[0] == 0xE5) {
-                    continue; // Skip deleted entries
-                }
-
-                String entryName = extractName(entry);
-
-                if (entryName.equalsIgnoreCase(fileName)) {
-                    found = true;
-                    if ((entry[11] & 0x10) == 0x10) {
-                        System.out.println("Error: " + fileName + " is not a file");
-                    } else {
-                        int size = ByteBuffer.wrap(entry, 28, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
-                        System.out.println("Size of " + fileName + " is " + size + " bytes");
-                    }
-                    break;
-                }
-            }
-
-            if (!found) {
-                System.out.println("Error: " + fileName + " is not a file");
+            PathResolver.Resolved resolved = session.resolve(fileName);
+            if (resolved == null || resolved.isDirectory()) {
+                out.println("Error: " + fileName + " is not a file");
+                return;
             }
-
+            DirEntry entry = resolved.getEntry();
+            out.println("Size of " + fileName + " is " + entry.getSize() + " bytes");
         } catch (IOException e) {
-            System.out.println("Error reading directory: " + e.getMessage());
+            out.println("Error reading directory: " + e.getMessage());
         }
     }
 
-    public static void cd(RandomAccessFile file, ByteBuffer bootSector, String dirName) {
+    public static void cd(Fat32Session session, String dirName, PrintStream out) {
         try {
             if(dirName.isEmpty()){
                 return;
@@ -381,134 +527,279 @@ public class fat32_reader {
             dirName = dirName.toUpperCase();
             if (dirName.equals(".")) {
                 // Stay in the current directory
-                System.out.println(currentPath + "]");
+                out.println(session.getPath() + "]");
                 return;
             }
 
-            if (dirName.equals("..")) {
-                // Navigate to the parent directory
-                if (!pathStack.isEmpty()) {
-                    currentCluster = pathStack.pop();
-                    // Update the path to reflect the change
-                    int lastSlash = currentPath.lastIndexOf('/');
-                    currentPath = lastSlash > 0 ? currentPath.substring(0, lastSlash) : "/";
-                }
+            // Absolute or relative, any number of components; ".." is applied to the path itself
+            if (!session.cd(dirName)) {
+                out.println("Error: " + dirName + " is not a directory");
+            }
+        } catch (IOException e) {
+            out.println("Error reading directory: " + e.getMessage());
+        }
+    }
+
+
+    public static void space(Fat32Session session, String dirName, PrintStream out) {
+        try {
+            PathResolver.Resolved resolved = session.resolve(dirName.isEmpty() ? "/" : dirName);
+            if (resolved == null || !resolved.isDirectory()) {
+                out.println("Error: " + dirName + " is not a directory");
                 return;
             }
+            SpaceAnalyzer analyzer = new SpaceAnalyzer(session.getVolume());
+            long clusterBytes = session.getVolume().getGeometry().getClusterBytes();
+
+            SpaceAnalyzer.FreeSpace free = analyzer.freeSpace();
+            out.println("Clusters: " + free.getClusters() + " of " + clusterBytes + " bytes");
+            out.println("Free clusters: " + free.getFree() + " (" + free.getFree() * clusterBytes + " bytes)");
+            out.println("Used clusters: " + free.getUsed());
+            out.println("Bad clusters: " + free.getBad());
+            out.println("Largest free run: " + free.getLargestFreeRun() + " clusters"
+                    + (free.getLargestFreeRun() > 0 ? " at " + printHex(free.getLargestFreeRunStart(), 8) : ""));
+            if (free.getFsInfoFreeCount() < 0) {
+                out.println("FSInfo free count: not recorded");
+            } else {
+                out.println("FSInfo free count: " + free.getFsInfoFreeCount()
+                        + (free.isFsInfoStale() ? " (stale, the FAT has " + free.getFree() + ")" : " (matches the FAT)"));
+            }
+            if (free.getFsInfoNextFree() >= 0) {
+                out.println("FSInfo next free: " + printHex(free.getFsInfoNextFree(), 8)
+                        + (free.isFsInfoNextFreeValid() ? " (free)" : " (not free)"));
+            }
 
-            // Get directory information
-            int bytesPerSector = getFieldValue(bootSector, BPB_BytesPerSec);
-            int sectorsPerCluster = getFieldValue(bootSector, BPB_SecPerClus);
-            int reservedSectors = getFieldValue(bootSector, BPB_RsvdSecCnt);
-            int numberOfFats = getFieldValue(bootSector, BPB_NumFATS);
-            int fatSize = getFieldValue(bootSector, BPB_FATSz32);
-
-            long sector = reservedSectors + (numberOfFats * fatSize) + (currentCluster - 2) * sectorsPerCluster;
-            long offset = sector * bytesPerSector;
-            file.seek(offset);
-
-            byte[] entry = new byte[32];
-            boolean found = false;
-
-
-            while (file.read(entry) == 32) {
-                if (entry[0] == 0x00) break;  // End of directory entries
-                if (entry[0] == 0xE5) continue;  // Skip deleted entries
-
-                String entryName = extractName(entry);
-                if (entryName.equalsIgnoreCase(dirName)) {
-                    if ((entry[11] & 0x10) != 0x10) {
-                        System.out.println("Error: " + dirName + " is not a directory");
-                        return;
-                    }
-                    pathStack.push(currentCluster); // Save current cluster before changing
-                    long firstClusterHigh = parseBytesToNumeric(entry, 20, 2);
-                    long firstClusterLow = parseBytesToNumeric(entry, 26, 2);
-                    currentCluster = (firstClusterHigh << 16) + firstClusterLow;
-                    found = true;
-                    // Update the path to reflect the change
-                    currentPath += (currentPath.endsWith("/") ? "" : "/") + dirName;
-                    break;
+            SpaceAnalyzer.Fragmentation fragmentation = analyzer.fragmentation(resolved, 5);
+            out.println("Files under " + resolved.getPath() + ": " + fragmentation.getFiles()
+                    + ", fragmented: " + fragmentation.getFragmentedFiles()
+                    + ", fragments: " + fragmentation.getFragments());
+            long[] histogram = fragmentation.getHistogram();
+            for (int b = 0; b < histogram.length; b++) {
+                if (histogram[b] > 0) {
+                    out.println("  " + SpaceAnalyzer.Fragmentation.bucketLabel(b) + " fragments: " + histogram[b]);
                 }
             }
+            for (String worst : fragmentation.getWorst()) {
+                out.println("  " + worst);
+            }
+        } catch (IOException e) {
+            out.println("Error reading directory: " + e.getMessage());
+        }
+    }
+
+    // JMX is only started once metrics are wanted, it costs noticeable startup time
+    private static void registerMetrics() {
+        try {
+            Metrics.registerMBean();
+        } catch (javax.management.JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public static void metrics(String argument, PrintStream out) {
+        if (argument.equals("reset")) {
+            Metrics.reset();
+            return;
+        }
+        if (argument.equals("on")) {
+            Metrics.setEnabled(true);
+            registerMetrics();
+            return;
+        }
+        if (argument.equals("off")) {
+            Metrics.setEnabled(false);
+            return;
+        }
+        if (!Metrics.isEnabled()) {
+            out.println("Metrics are off, turn them on with 'metrics on' or --metrics");
+            return;
+        }
+        for (Metrics.Counter counter : Metrics.Counter.values()) {
+            out.println(counter.getLabel() + ": " + Metrics.get(counter));
+        }
+        out.println(String.format("%-8s %10s %10s %10s %10s", "command", "count", "mean us", "p50 us", "p99 us"));
+        for (Map.Entry<String, Metrics.Histogram> command : Metrics.commands().entrySet()) {
+            Metrics.Histogram histogram = command.getValue();
+            out.println(String.format("%-8s %10d %10d %10d %10d", command.getKey(), histogram.count(),
+                    histogram.meanNanos() / 1000, histogram.percentileNanos(50) / 1000,
+                    histogram.percentileNanos(99) / 1000));
+        }
+    }
+
+    public static void walk(Fat32Session session, String dirName, PrintStream out) {
+        try {
+            PathResolver.Resolved resolved = session.resolve(dirName.isEmpty() ? "." : dirName);
+            if (resolved == null || !resolved.isDirectory()) {
+                out.println("Error: " + dirName + " is not a directory");
+                return;
+            }
+            // Entries arrive from several threads in no particular order, print them sorted
+            Queue<String> paths = new ConcurrentLinkedQueue<>();
+            new TreeWalker(session.getVolume()).walk(resolved,
+                    (path, entry) -> paths.add(entry.isDirectory() ? path + "/" : path));
+            List<String> sorted = new ArrayList<>(paths);
+            Collections.sort(sorted);
+            for (String path : sorted) {
+                out.println(path);
+            }
+        } catch (IOException e) {
+            out.println("Error reading directory: " + e.getMessage());
+        }
+    }
 
-            if (found) {
+    public static void extract(Fat32Session session, String dirName, String hostDir, PrintStream out) {
+        try {
+            PathResolver.Resolved resolved = session.resolve(dirName);
+            if (resolved == null || !resolved.isDirectory()) {
+                out.println("Error: " + dirName + " is not a directory");
                 return;
-            } else {
-                System.out.println("Error: " + dirName + " is not a directory");
             }
+            Extractor extractor = new Extractor(session.getVolume());
+            extractor.extract(resolved, Paths.get(hostDir));
+            out.println("Extracted " + extractor.files() + " files, " + extractor.bytes() + " bytes to " + hostDir);
+        } catch (IOException e) {
+            out.println("Error extracting: " + e.getMessage());
+        }
+    }
+
+
+    // grep [-i] PATTERN... searches every file below the working directory; "quoted patterns" may hold spaces
+    public static void grep(Fat32Session session, String argument, PrintStream out) {
+        boolean ignoreCase = false;
+        List<String> patterns = new ArrayList<>();
+        Matcher words = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(argument);
+        while (words.find()) {
+            String word = words.group(1) != null ? words.group(1) : words.group(2);
+            if (word.equals("-i") && patterns.isEmpty() && !ignoreCase) {
+                ignoreCase = true;
+            } else if (!word.isEmpty()) {
+                patterns.add(word);
+            }
+        }
+        if (patterns.isEmpty()) {
+            out.println("Usage: grep [-i] <PATTERN> [<PATTERN> ...]");
+            return;
+        }
+        List<byte[]> bytes = new ArrayList<>();
+        for (String pattern : patterns) {
+            bytes.add(pattern.getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            ContentSearch search = new ContentSearch(session.getVolume(), new PatternMatcher(bytes, ignoreCase));
+            List<ContentSearch.Match> matches = search.search(session.resolve("."));
+            for (ContentSearch.Match match : matches) {
+                out.println(match.getPath() + ":" + match.getOffset() + ": " + patterns.get(match.getPattern()));
+            }
+            out.println(search.matches() + " matches in " + search.files() + " files, " + search.bytes() + " bytes searched"
+                    + (search.matches() > matches.size() ? " (" + matches.size() + " shown)" : ""));
+        } catch (IOException e) {
+            out.println("Error searching: " + e.getMessage());
+        }
+    }
+
+
+    public static void mkdir(Fat32Session session, String dirName, PrintStream out) {
+        try {
+            session.mkdir(dirName);
+        } catch (IOException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+
+
+    // Creates an empty file, leaving an existing one alone
+    public static void touch(Fat32Session session, String fileName, PrintStream out) {
+        try {
+            session.touch(fileName);
+        } catch (IOException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+
+
+    // Copies HOST_FILE into the image, replacing the file's contents or appending to them
+    public static void write(Fat32Session session, String fileName, String hostFile, boolean append, PrintStream out) {
+        InputStream in;
+        try {
+            in = new FileInputStream(hostFile);
+        } catch (FileNotFoundException e) {
+            out.println("Error: cannot open " + hostFile);
+            return;
+        }
+        // Opened on its own, so a missing directory in the image is not reported as a missing host file
+        try (in) {
+            long size = session.write(fileName, in, append);
+            out.println("Wrote " + fileName + ", now " + size + " bytes");
         } catch (IOException e) {
-            System.out.println("Error reading directory: " + e.getMessage());
+            out.println("Error: " + e.getMessage());
         }
     }
 
 
-    public static void read(RandomAccessFile file, ByteBuffer bootSector, String fileName, int offset, int numBytes) {
+    public static void rm(Fat32Session session, String name, PrintStream out) {
+        try {
+            session.delete(name);
+        } catch (IOException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+
+
+    // Commits pending changes; a read-only image has none
+    public static void sync(Fat32Volume volume, PrintStream out) {
+        if (volume.getWriter() == null) {
+            return;
+        }
+        try {
+            volume.getWriter().commit();
+        } catch (IOException e) {
+            out.println("Error committing changes: " + e.getMessage());
+        }
+    }
+
+
+    public static void read(Fat32Session session, String fileName, long offset, long numBytes, PrintStream out) {
         if(offset < 0){
-            System.out.println("Error: OFFSET must be a positive value");
+            out.println("Error: OFFSET must be a positive value");
             return;
         }
         if(numBytes < 1){
-            System.out.println("Error: NUM_BYTES must be greater than zero");
+            out.println("Error: NUM_BYTES must be greater than zero");
             return;
         }
         try {
 
-            int bytesPerSector = getFieldValue(bootSector, BPB_BytesPerSec);
-            int sectorsPerCluster = getFieldValue(bootSector, BPB_SecPerClus);
-            int reservedSectors = getFieldValue(bootSector, BPB_RsvdSecCnt);
-            int numberOfFats = getFieldValue(bootSector, BPB_NumFATS);
-            int fatSize = getFieldValue(bootSector, BPB_FATSz32);
-
-            // Compute the first sector of the data region
-            int firstDataSector = reservedSectors + (numberOfFats * fatSize);
-            long dataRegionOffset = firstDataSector * bytesPerSector;
-
-            // Assuming the file is in the root directory for simplicity
-            file.seek(dataRegionOffset);
-            byte[] entry = new byte[32];
-            boolean found = false;
-
-            while (file.read(entry) == 32) {
-                if (entry[0] == 0x00) break; // No more entries
-                if (entry[0] == 0xE5) continue; // Deleted entry
-
-                String entryName = extractName(entry);
-                if (entryName.equalsIgnoreCase(fileName)) {
-                    if ((entry[11] & 0x10) == 0x10) {
-                        System.out.println("Error: " + fileName + " is not a file");
-                        return;
-                    }
-                    long fileSize = parseBytesToNumeric(entry, 28, 4);
-                    if (offset + numBytes > fileSize) {
-                        System.out.println("Error: attempt to read data outside of file bounds");
-                        return;
-                    }
-
-                    long firstClusterHigh = parseBytesToNumeric(entry, 20, 2);
-                    long firstClusterLow = parseBytesToNumeric(entry, 26, 2);
-                    long firstCluster = (firstClusterHigh << 16) + firstClusterLow;
-
-                    // Calculate the actual offset in the file data to start reading
-                    long clusterOffset = dataRegionOffset + (firstCluster - 2) * sectorsPerCluster * bytesPerSector + offset;
-                    file.seek(clusterOffset);
-
-                    byte[] data = new byte[numBytes];
-                    file.readFully(data);
-
-                    // Convert to ASCII string and print
-                    System.out.println(new String(data, StandardCharsets.US_ASCII));
-                    found = true;
-                    break;
-                }
+            PathResolver.Resolved resolved = session.resolve(fileName);
+            if (resolved == null || resolved.isDirectory()) {
+                out.println("Error: " + fileName + " is not a file");
+                return;
+            }
+            DirEntry entry = resolved.getEntry();
+            long fileSize = entry.getSize();
+            if (offset > fileSize - numBytes) { // offset + numBytes could overflow
+                out.println("Error: attempt to read data outside of file bounds");
+                return;
             }
 
-            if (!found) {
-                System.out.println("Error: " + fileName +  " is not a file");
+            try (ReadAheadChannel channel = session.getVolume().openSequential(entry)) {
+                channel.position(offset);
+
+                // Convert to ASCII and print, one buffer at a time; long reads overlap with read-ahead
+                long remaining = numBytes;
+                while (remaining > 0) {
+                    readBuffer.clear().limit((int) Math.min(readBuffer.capacity(), remaining));
+                    int n = channel.read(readBuffer);
+                    if (n <= 0) break;
+                    remaining -= n;
+                    readChars.clear();
+                    asciiDecoder.reset().decode(readBuffer.flip(), readChars, true);
+                    out.append(readChars.flip());
+                }
             }
+            out.println();
         } catch (IOException e) {
-            System.out.println("Error reading file: " + e.getMessage());
+            out.println("Error reading file: " + e.getMessage());
         }
     }
 
-}
\ No newline at end of file
+}